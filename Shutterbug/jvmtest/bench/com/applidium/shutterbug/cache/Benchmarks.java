@@ -0,0 +1,45 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Helpers shared by the benchmarks. */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /** Returns a new empty directory. */
+    static File newDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    static void deleteContents(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+    }
+
+    /** Returns the value below which {@code percentile} percent of {@code values} fall. */
+    static long percentile(long[] values, double percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Ends the benchmark. Caches leave an idle cleanup thread behind that
+     * would otherwise keep the JVM alive for a minute.
+     */
+    static void exit(File... directories) {
+        for (File directory : directories) {
+            deleteContents(directory);
+            directory.delete();
+        }
+        System.exit(0);
+    }
+}
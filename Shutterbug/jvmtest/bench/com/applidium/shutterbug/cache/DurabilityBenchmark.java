@@ -0,0 +1,80 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures how many commits per second threads committing concurrently
+ * reach under each journal durability mode, with values stored one file
+ * each and packed in segments.
+ */
+public final class DurabilityBenchmark {
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final int THREAD_COUNT = 4;
+    private static final int COMMIT_COUNT = 2000;
+    private static final int VALUE_SIZE = 2048;
+    private static final int RUN_COUNT = 5;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Benchmarks.newDirectory("DurabilityBenchmark");
+        System.out.println(COMMIT_COUNT + " commits of " + VALUE_SIZE + " bytes from " + THREAD_COUNT
+                + " threads, best of " + RUN_COUNT + " runs");
+        for (boolean packedStorage : new boolean[] { false, true }) {
+            for (DiskLruCache.Durability durability : DiskLruCache.Durability.values()) {
+                long best = 0;
+                for (int run = 0; run < RUN_COUNT; run++) {
+                    Benchmarks.deleteContents(directory);
+                    best = Math.max(best, commitsPerSecond(directory, packedStorage, durability));
+                }
+                System.out.println((packedStorage ? "packed " : "files  ") + durability + ": " + best
+                        + " commits/s");
+            }
+        }
+        Benchmarks.exit(directory);
+    }
+
+    private static long commitsPerSecond(File directory, boolean packedStorage,
+            DiskLruCache.Durability durability) throws Exception {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.binaryJournal = true;
+        options.packedStorage = packedStorage;
+        options.durability = durability;
+        final DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE,
+                options);
+        final byte[] value = new byte[VALUE_SIZE];
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[THREAD_COUNT];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i = 0; i < COMMIT_COUNT / THREAD_COUNT; i++) {
+                            DiskLruCache.Editor editor = cache.edit("key" + thread + "_" + i);
+                            editor.set(0, "metadata");
+                            OutputStream out = editor.newOutputStream(1);
+                            out.write(value);
+                            out.close();
+                            editor.commit();
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = System.nanoTime() - start;
+        cache.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return COMMIT_COUNT * 1000000000L / nanos;
+    }
+}
@@ -0,0 +1,131 @@
+package com.applidium.shutterbug.cache;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link LruCache} and {@link ConcurrentLruCache}
+ * under concurrent gets and puts of gaussian distributed keys, with a
+ * growing number of reader threads.
+ */
+public final class MemoryCacheBenchmark {
+    private static final int MAX_SIZE = 1000;
+    private static final int KEY_SPREAD = 2000;
+    private static final int WRITER_COUNT = 2;
+    private static final int[] READER_COUNTS = { 1, 4, 8 };
+    private static final long DURATION_MILLIS = 2000;
+
+    /** The operations measured, on either cache. */
+    private interface Cache {
+        Object get(Integer key);
+
+        void put(Integer key, Object value);
+
+        int hitCount();
+
+        int missCount();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("max size " + MAX_SIZE + ", " + WRITER_COUNT + " writer threads, "
+                + Runtime.getRuntime().availableProcessors() + " CPUs");
+        // the first round warms up both caches
+        for (int round = 0; round < 2; round++) {
+            for (int readerCount : READER_COUNTS) {
+                Cache lruCache = lruCache();
+                Cache concurrentLruCache = concurrentLruCache(ConcurrentLruCache.Policy.LRU);
+                Cache tinyLfuCache = concurrentLruCache(ConcurrentLruCache.Policy.WINDOW_TINY_LFU);
+                long lru = opsPerSecond(lruCache, readerCount);
+                long concurrentLru = opsPerSecond(concurrentLruCache, readerCount);
+                long tinyLfu = opsPerSecond(tinyLfuCache, readerCount);
+                if (round > 0) {
+                    System.out.println(readerCount + " readers: LruCache " + lru / 1000 + "k ops/s ("
+                            + hitRate(lruCache) + "% hits), ConcurrentLruCache LRU " + concurrentLru / 1000
+                            + "k ops/s (" + hitRate(concurrentLruCache) + "%), WINDOW_TINY_LFU "
+                            + tinyLfu / 1000 + "k ops/s (" + hitRate(tinyLfuCache) + "%)");
+                }
+            }
+        }
+    }
+
+    private static Cache lruCache() {
+        final LruCache<Integer, Object> cache = new LruCache<Integer, Object>(MAX_SIZE);
+        return new Cache() {
+            @Override public Object get(Integer key) {
+                return cache.get(key);
+            }
+
+            @Override public void put(Integer key, Object value) {
+                cache.put(key, value);
+            }
+
+            @Override public int hitCount() {
+                return cache.hitCount();
+            }
+
+            @Override public int missCount() {
+                return cache.missCount();
+            }
+        };
+    }
+
+    private static Cache concurrentLruCache(ConcurrentLruCache.Policy policy) {
+        final ConcurrentLruCache<Integer, Object> cache = new ConcurrentLruCache<Integer, Object>(MAX_SIZE,
+                policy);
+        return new Cache() {
+            @Override public Object get(Integer key) {
+                return cache.get(key);
+            }
+
+            @Override public void put(Integer key, Object value) {
+                cache.put(key, value);
+            }
+
+            @Override public int hitCount() {
+                return cache.hitCount();
+            }
+
+            @Override public int missCount() {
+                return cache.missCount();
+            }
+        };
+    }
+
+    private static long opsPerSecond(final Cache cache, int readerCount) throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final long end = System.nanoTime() + DURATION_MILLIS * 1000 * 1000;
+        Thread[] threads = new Thread[readerCount + WRITER_COUNT];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = t >= readerCount;
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    long count = 0;
+                    Object value = new Object();
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < 256; i++) {
+                            Integer key = (int) Math.abs(random.nextGaussian() * KEY_SPREAD);
+                            if (writer) {
+                                cache.put(key, value);
+                            } else {
+                                cache.get(key);
+                            }
+                        }
+                        count += 256;
+                    }
+                    ops.addAndGet(count);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return ops.get() * 1000 / DURATION_MILLIS;
+    }
+
+    private static long hitRate(Cache cache) {
+        long requests = cache.hitCount() + cache.missCount();
+        return requests == 0 ? 0 : cache.hitCount() * 100L / requests;
+    }
+}
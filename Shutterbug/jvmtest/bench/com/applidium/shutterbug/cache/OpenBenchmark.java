@@ -0,0 +1,77 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures how long opening a cache takes when it replays its whole journal
+ * and when it loads a checkpointed index.
+ */
+public final class OpenBenchmark {
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final int ENTRY_COUNT = 20000;
+    private static final int READ_COUNT = 3 * ENTRY_COUNT;
+    private static final int WARMUP_COUNT = 10;
+    private static final int OPEN_COUNT = 20;
+    private static final long CHECKPOINT_INTERVAL = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        File replayDirectory = Benchmarks.newDirectory("OpenBenchmark");
+        File checkpointDirectory = Benchmarks.newDirectory("OpenBenchmark");
+        fill(replayDirectory, options(0));
+        fill(checkpointDirectory, options(CHECKPOINT_INTERVAL));
+
+        System.out.println(ENTRY_COUNT + " entries, " + READ_COUNT + " reads");
+        report("full replay", replayDirectory, options(0));
+        report("checkpoint ", checkpointDirectory, options(CHECKPOINT_INTERVAL));
+        Benchmarks.exit(replayDirectory, checkpointDirectory);
+    }
+
+    private static DiskLruCache.Options options(long checkpointInterval) {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.binaryJournal = true;
+        options.packedStorage = true;
+        options.accessRecording = DiskLruCache.AccessRecording.BATCHED;
+        options.checkpointInterval = checkpointInterval;
+        return options;
+    }
+
+    /** Writes entries, then reads them at random so the journal has a history. */
+    private static void fill(File directory, DiskLruCache.Options options) throws IOException {
+        DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE, options);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            DiskLruCache.Editor editor = cache.edit("key" + i);
+            editor.set(0, "metadata");
+            editor.set(1, "value");
+            editor.commit();
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < READ_COUNT; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("key" + random.nextInt(ENTRY_COUNT));
+            snapshot.close();
+        }
+        cache.close();
+    }
+
+    private static void report(String label, File directory, DiskLruCache.Options options)
+            throws IOException {
+        long[] micros = new long[OPEN_COUNT];
+        boolean fromCheckpoint = false;
+        for (int i = -WARMUP_COUNT; i < OPEN_COUNT; i++) {
+            long start = System.nanoTime();
+            DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE,
+                    options);
+            if (i >= 0) {
+                micros[i] = (System.nanoTime() - start) / 1000;
+            }
+            fromCheckpoint = cache.openedFromCheckpoint();
+            cache.close();
+        }
+        long journalBytes = new File(directory, DiskLruCache.BINARY_JOURNAL_FILE).length();
+        System.out.println(label + ": median " + Benchmarks.percentile(micros, 50) / 1000.0
+                + " ms, min " + Benchmarks.percentile(micros, 0) / 1000.0 + " ms, journal "
+                + journalBytes / 1024 + " KB, from checkpoint " + fromCheckpoint);
+    }
+}
@@ -0,0 +1,70 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the latency of gets on a cache whose journal keeps being
+ * rebuilt: every get appends a READ record, so the cleanup thread rewrites
+ * the journal once per {@link #ENTRY_COUNT} gets or so.
+ */
+public final class RebuildLatencyBenchmark {
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 1;
+    private static final int ENTRY_COUNT = 100000;
+    private static final int WARMUP_COUNT = 100000;
+    private static final int GET_COUNT = 1000000;
+    private static final long STALL_NANOS = 1000 * 1000;
+
+    public static void main(String[] args) throws IOException {
+        File directory = Benchmarks.newDirectory("RebuildLatencyBenchmark");
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.binaryJournal = true;
+        DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE, options);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            DiskLruCache.Editor editor = cache.edit("key" + i);
+            editor.set(0, "value");
+            editor.commit();
+        }
+
+        Random random = new Random(0);
+        File journal = new File(directory, DiskLruCache.BINARY_JOURNAL_FILE);
+        long[] nanos = new long[GET_COUNT];
+        long journalLength = 0;
+        int rebuildCount = 0;
+        int stallCount = 0;
+        for (int i = -WARMUP_COUNT; i < GET_COUNT; i++) {
+            String key = "key" + random.nextInt(ENTRY_COUNT);
+            long start = System.nanoTime();
+            cache.get(key).close();
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+                if (nanos[i] >= STALL_NANOS) {
+                    stallCount++;
+                }
+                if (i % 1024 == 0) {
+                    // a journal that shrank was rebuilt
+                    long length = journal.length();
+                    if (length < journalLength) {
+                        rebuildCount++;
+                    }
+                    journalLength = length;
+                }
+            }
+        }
+        cache.close();
+
+        System.out.println(ENTRY_COUNT + " entries, " + GET_COUNT + " gets, about " + rebuildCount
+                + " journal rebuilds");
+        System.out.println("get latency: p50 " + micros(nanos, 50) + " us, p99 " + micros(nanos, 99)
+                + " us, p99.9 " + micros(nanos, 99.9) + " us, p99.99 " + micros(nanos, 99.99)
+                + " us, max " + micros(nanos, 100) + " us");
+        System.out.println("gets over " + STALL_NANOS / 1000 + " us: " + stallCount);
+        Benchmarks.exit(directory);
+    }
+
+    private static String micros(long[] nanos, double percentile) {
+        return String.valueOf(Benchmarks.percentile(nanos, percentile) / 1000);
+    }
+}
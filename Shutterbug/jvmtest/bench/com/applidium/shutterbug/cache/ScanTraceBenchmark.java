@@ -0,0 +1,101 @@
+package com.applidium.shutterbug.cache;
+
+import java.util.Random;
+
+/**
+ * Replays a trace of a hot set of images, requested again and again, mixed
+ * with scans of images requested once, as when flinging through a long
+ * list. Prints the hit rates of {@link LruCache} and of both
+ * {@link ConcurrentLruCache} policies, each filling itself on a miss.
+ */
+public final class ScanTraceBenchmark {
+    private static final int MAX_SIZE = 1000;
+    private static final int HOT_SET_SIZE = 500;
+    private static final int REQUEST_COUNT = 1000 * 1000;
+    private static final int[] SCAN_PERCENTS = { 0, 50, 70, 90 };
+
+    /** The operations replayed, on either cache. */
+    private interface Cache {
+        Object get(Integer key);
+
+        void put(Integer key, Object value);
+    }
+
+    public static void main(String[] args) {
+        System.out.println("max size " + MAX_SIZE + ", hot set " + HOT_SET_SIZE + ", " + REQUEST_COUNT
+                + " requests");
+        for (int scanPercent : SCAN_PERCENTS) {
+            int[] trace = trace(scanPercent);
+            System.out.println(scanPercent + "% scans: LruCache " + hotHitRate(lruCache(), trace)
+                    + "% hot hits, ConcurrentLruCache LRU "
+                    + hotHitRate(concurrentLruCache(ConcurrentLruCache.Policy.LRU), trace)
+                    + "%, WINDOW_TINY_LFU "
+                    + hotHitRate(concurrentLruCache(ConcurrentLruCache.Policy.WINDOW_TINY_LFU), trace) + "%");
+        }
+    }
+
+    /**
+     * Returns the keys requested: hot keys are below {@link #HOT_SET_SIZE},
+     * scanned keys above it are never requested twice.
+     */
+    private static int[] trace(int scanPercent) {
+        Random random = new Random(scanPercent);
+        int[] trace = new int[REQUEST_COUNT];
+        int nextScanned = HOT_SET_SIZE;
+        for (int i = 0; i < trace.length; i++) {
+            if (random.nextInt(100) < scanPercent) {
+                trace[i] = nextScanned++;
+            } else {
+                trace[i] = random.nextInt(HOT_SET_SIZE);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Returns the percentage of requests for hot keys that hit; scanned keys
+     * always miss.
+     */
+    private static long hotHitRate(Cache cache, int[] trace) {
+        Object value = new Object();
+        long hotRequests = 0;
+        long hotHits = 0;
+        for (int key : trace) {
+            boolean hot = key < HOT_SET_SIZE;
+            if (cache.get(key) != null) {
+                hotHits += hot ? 1 : 0;
+            } else {
+                cache.put(key, value);
+            }
+            hotRequests += hot ? 1 : 0;
+        }
+        return hotRequests == 0 ? 0 : hotHits * 100 / hotRequests;
+    }
+
+    private static Cache lruCache() {
+        final LruCache<Integer, Object> cache = new LruCache<Integer, Object>(MAX_SIZE);
+        return new Cache() {
+            @Override public Object get(Integer key) {
+                return cache.get(key);
+            }
+
+            @Override public void put(Integer key, Object value) {
+                cache.put(key, value);
+            }
+        };
+    }
+
+    private static Cache concurrentLruCache(ConcurrentLruCache.Policy policy) {
+        final ConcurrentLruCache<Integer, Object> cache = new ConcurrentLruCache<Integer, Object>(MAX_SIZE,
+                policy);
+        return new Cache() {
+            @Override public Object get(Integer key) {
+                return cache.get(key);
+            }
+
+            @Override public void put(Integer key, Object value) {
+                cache.put(key, value);
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package com.applidium.shutterbug.utils;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+/**
+ * Measures the time and the bytes allocated per key of {@link CacheKey},
+ * against the string keys computed before it: a SHA-1 digest of the
+ * prefix and size, formatted with {@code String.format("%x")}.
+ */
+public final class CacheKeyBenchmark {
+    private static final int URL_COUNT = 1024;
+    private static final int MAX_WIDTH = 200;
+    private static final int MAX_HEIGHT = 200;
+    private static final int ITERATIONS = 200;
+
+    /** A way of computing the string key of a prefix. */
+    private interface KeyFunction {
+        String key(String prefix, byte[] encodedPrefix);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] prefixes = new String[URL_COUNT];
+        byte[][] encodedPrefixes = new byte[URL_COUNT][];
+        for (int i = 0; i < URL_COUNT; i++) {
+            prefixes[i] = "http://images.example.com/photos/" + i + "/large.jpg";
+            encodedPrefixes[i] = CacheKey.encodePrefix(prefixes[i]);
+        }
+        KeyFunction stringKey = new KeyFunction() {
+            @Override public String key(String prefix, byte[] encodedPrefix) {
+                return stringKey(prefix, MAX_WIDTH, MAX_HEIGHT);
+            }
+        };
+        KeyFunction cacheKey = new KeyFunction() {
+            @Override public String key(String prefix, byte[] encodedPrefix) {
+                return CacheKey.of(prefix, MAX_WIDTH, MAX_HEIGHT).toString();
+            }
+        };
+        KeyFunction encodedCacheKey = new KeyFunction() {
+            @Override public String key(String prefix, byte[] encodedPrefix) {
+                return CacheKey.of(encodedPrefix, MAX_WIDTH, MAX_HEIGHT).toString();
+            }
+        };
+
+        System.out.println(URL_COUNT + " URLs, " + MAX_WIDTH + "x" + MAX_HEIGHT + ", "
+                + (allocationSupported() ? "" : "no allocation counter, ") + ITERATIONS + " iterations");
+        // the first round warms up every function
+        for (int round = 0; round < 2; round++) {
+            String string = measure(stringKey, prefixes, encodedPrefixes);
+            String key = measure(cacheKey, prefixes, encodedPrefixes);
+            String encodedKey = measure(encodedCacheKey, prefixes, encodedPrefixes);
+            if (round > 0) {
+                System.out.println("string key: " + string);
+                System.out.println("CacheKey.of(String): " + key);
+                System.out.println("CacheKey.of(byte[]): " + encodedKey);
+            }
+        }
+    }
+
+    /** The key as ShutterbugManager.getCacheKey() computed it before. */
+    static String stringKey(String prefix, int maxWidth, int maxHeight) {
+        try {
+            String key = prefix + "w=" + maxWidth + "&h=" + maxHeight;
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(key.getBytes("UTF-8"), 0, key.length());
+            return String.format("%x", new BigInteger(md.digest()));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String measure(KeyFunction function, String[] prefixes, byte[][] encodedPrefixes) {
+        int keyCount = ITERATIONS * prefixes.length;
+        int checksum = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (int i = 0; i < prefixes.length; i++) {
+                checksum += function.key(prefixes[i], encodedPrefixes[i]).length();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (checksum == 0) {
+            throw new AssertionError();
+        }
+        return nanos / keyCount + " ns/key"
+                + (allocationSupported() ? ", " + allocated / keyCount + " bytes/key" : "");
+    }
+
+    private static boolean allocationSupported() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean;
+    }
+
+    private static long allocatedBytes() {
+        if (!allocationSupported()) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,117 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures {@link RequestRegistry} with a steady number of outstanding
+ * requests, each of its own listener and URL waiting for a download: the
+ * time to dispatch a request, from its registration to the delivery of its
+ * result, and the time to cancel a listener and register a new request.
+ */
+public final class RequestRegistryBenchmark {
+    private static final int[] OUTSTANDING_COUNTS = { 10, 1000, 10000 };
+    private static final int OPERATION_COUNT = 200000;
+
+    public static void main(String[] args) {
+        System.out.println(OPERATION_COUNT + " operations");
+        // the first round warms up the registry
+        for (int round = 0; round < 2; round++) {
+            for (int outstanding : OUTSTANDING_COUNTS) {
+                long dispatch = dispatchNanos(outstanding);
+                long cancel = cancelNanos(outstanding);
+                if (round > 0) {
+                    System.out.println(outstanding + " outstanding: dispatch " + dispatch + " ns, cancel "
+                            + cancel + " ns");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time to register a request, hand it over to a download and
+     * deliver its result, while the oldest outstanding request completes.
+     */
+    private static long dispatchNanos(int outstanding) {
+        RequestRegistry<TestRequest, Object> registry = new RequestRegistry<TestRequest, Object>();
+        TestRequest[] requests = requests(outstanding + OPERATION_COUNT);
+        Object[] downloaders = new Object[requests.length];
+        for (int i = 0; i < downloaders.length; i++) {
+            downloaders[i] = new Object();
+        }
+        for (int i = 0; i < outstanding; i++) {
+            registry.addCacheRequest(requests[i]);
+            registry.moveToDownload(requests[i], downloaders[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            int next = outstanding + i;
+            registry.addCacheRequest(requests[next]);
+            registry.moveToDownload(requests[next], downloaders[next]);
+            for (TestRequest delivered : registry.removeDownloader(downloaders[i])) {
+                registry.removeDeliveredRequest(delivered);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        check(registry, outstanding);
+        return nanos / OPERATION_COUNT;
+    }
+
+    /**
+     * Returns the time to cancel the listener of the oldest outstanding
+     * request, as a view being recycled does, and to register a new request
+     * waiting for a download.
+     */
+    private static long cancelNanos(int outstanding) {
+        RequestRegistry<TestRequest, Object> registry = new RequestRegistry<TestRequest, Object>();
+        TestRequest[] requests = requests(outstanding + OPERATION_COUNT);
+        for (int i = 0; i < outstanding; i++) {
+            registry.addCacheRequest(requests[i]);
+            registry.moveToDownload(requests[i], new Object());
+        }
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            canceled.clear();
+            registry.cancel(requests[i].getListener(), canceled);
+            int next = outstanding + i;
+            registry.addCacheRequest(requests[next]);
+            registry.moveToDownload(requests[next], new Object());
+        }
+        long nanos = System.nanoTime() - start;
+        check(registry, outstanding);
+        return nanos / OPERATION_COUNT;
+    }
+
+    private static TestRequest[] requests(int count) {
+        TestRequest[] requests = new TestRequest[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = new TestRequest("http://images.example.com/" + i + ".jpg", new Object());
+        }
+        return requests;
+    }
+
+    private static void check(RequestRegistry<?, ?> registry, int outstanding) {
+        if (registry.size() != outstanding) {
+            throw new AssertionError(registry.size() + " outstanding, expected " + outstanding);
+        }
+    }
+
+    private static final class TestRequest implements RequestRegistry.Request {
+        private final String url;
+        private final Object listener;
+
+        TestRequest(String url, Object listener) {
+            this.url = url;
+            this.listener = listener;
+        }
+
+        @Override public String getUrl() {
+            return url;
+        }
+
+        @Override public Object getListener() {
+            return listener;
+        }
+    }
+}
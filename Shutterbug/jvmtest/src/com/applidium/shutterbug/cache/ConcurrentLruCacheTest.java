@@ -0,0 +1,171 @@
+package com.applidium.shutterbug.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public final class ConcurrentLruCacheTest {
+    @Test public void lruEvictsEntryNotReadSinceSweep() {
+        RecordingCache cache = new RecordingCache(3, ConcurrentLruCache.Policy.LRU);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("a");
+        cache.put("d", "D");
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c", "d")), cache.snapshot().keySet());
+        assertEquals(Arrays.asList("b"), cache.evicted);
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test public void lruEvictsUnreadNewEntryBeforeReadOnes() {
+        RecordingCache cache = new RecordingCache(2, ConcurrentLruCache.Policy.LRU);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.get("b");
+        cache.put("c", "C");
+        assertEquals(2, cache.size());
+        assertEquals(Arrays.asList("c"), cache.evicted);
+    }
+
+    @Test public void lruSweepEndsWhenEverythingIsRead() {
+        RecordingCache cache = new RecordingCache(2, ConcurrentLruCache.Policy.LRU);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.get("b");
+        cache.resize(1);
+        assertEquals(1, cache.size());
+        assertEquals(Arrays.asList("a"), cache.evicted);
+    }
+
+    @Test public void candidateRequestedLessOftenIsRejected() {
+        RecordingCache cache = filledTinyLfuCache();
+        cache.put("x", "X");
+        cache.put("y", "Y");
+        // "x" left the window when "y" was put, and was never requested
+        assertEquals(Arrays.asList("x"), cache.rejected);
+        assertNull(cache.get("x"));
+        assertEquals("Y", cache.get("y"));
+        assertEquals(10, cache.size());
+    }
+
+    @Test public void candidateRequestedMoreOftenIsAdmitted() {
+        RecordingCache cache = filledTinyLfuCache();
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.get("x"));
+        }
+        cache.put("x", "X");
+        cache.put("y", "Y");
+        assertTrue(cache.rejected.isEmpty());
+        assertEquals(2, cache.evicted.size());
+        assertEquals("X", cache.get("x"));
+    }
+
+    @Test public void candidateRequestedAsOftenAsVictimIsAdmitted() {
+        RecordingCache cache = filledTinyLfuCache();
+        for (int i = 0; i < 3; i++) {
+            cache.get("x");
+        }
+        cache.put("x", "X");
+        cache.put("y", "Y");
+        assertTrue(cache.rejected.isEmpty());
+        assertTrue(cache.snapshot().containsKey("x"));
+    }
+
+    @Test public void evictAllRemovesWindowEntriesToo() {
+        RecordingCache cache = filledTinyLfuCache();
+        cache.put("x", "X");
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue(cache.snapshot().isEmpty());
+        assertEquals(11, cache.evicted.size() + cache.rejected.size());
+    }
+
+    @Test public void resizeTrimsToNewSize() {
+        RecordingCache cache = filledTinyLfuCache();
+        cache.resize(5);
+        assertEquals(5, cache.size());
+        assertEquals(5, cache.snapshot().size());
+    }
+
+    @Test public void sketchGrowsWithEntriesAndKeepsFrequencies() throws Exception {
+        RecordingCache cache = new RecordingCache(1000, ConcurrentLruCache.Policy.WINDOW_TINY_LFU);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v");
+        }
+        for (int i = 0; i < 6; i++) {
+            cache.get("k0");
+        }
+        assertEquals(64, sketch(cache).capacity());
+
+        for (int i = 10; i < 100; i++) {
+            cache.put("k" + i, "v");
+        }
+        FrequencySketch grown = sketch(cache);
+        assertEquals(256, grown.capacity());
+        assertTrue(grown.frequency("k0") >= 6);
+        assertTrue(cache.evicted.isEmpty());
+    }
+
+    @Test public void replacedValueIsReportedOnce() {
+        RecordingCache cache = new RecordingCache(10, ConcurrentLruCache.Policy.WINDOW_TINY_LFU);
+        cache.put("a", "A1");
+        assertEquals("A1", cache.put("a", "A2"));
+        assertEquals(Arrays.asList("a"), cache.replaced);
+        assertEquals(1, cache.size());
+        assertEquals("A2", cache.get("a"));
+    }
+
+    /**
+     * Returns a full cache of ten entries, each requested three times, with
+     * an admission window of a single entry.
+     */
+    private static RecordingCache filledTinyLfuCache() {
+        RecordingCache cache = new RecordingCache(10, ConcurrentLruCache.Policy.WINDOW_TINY_LFU);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < 10; i++) {
+                cache.get("k" + i);
+            }
+        }
+        assertFalse(cache.snapshot().isEmpty());
+        assertTrue(cache.evicted.isEmpty());
+        return cache;
+    }
+
+    private static FrequencySketch sketch(ConcurrentLruCache<?, ?> cache) throws Exception {
+        Field field = ConcurrentLruCache.class.getDeclaredField("sketch");
+        field.setAccessible(true);
+        return (FrequencySketch) field.get(cache);
+    }
+
+    private static final class RecordingCache extends ConcurrentLruCache<String, String> {
+        final List<String> evicted = new ArrayList<String>();
+        final List<String> rejected = new ArrayList<String>();
+        final List<String> replaced = new ArrayList<String>();
+
+        RecordingCache(int maxSize, Policy policy) {
+            super(maxSize, policy);
+        }
+
+        @Override protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            (evicted ? this.evicted : replaced).add(key);
+        }
+
+        @Override protected void entryRejected(String key, String value) {
+            rejected.add(key);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.applidium.shutterbug.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public final class DiskLruCacheTest {
+    private static final int APP_VERSION = 100;
+    private static final int VALUE_COUNT = 2;
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        directory = File.createTempFile("DiskLruCacheTest", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test public void textJournalRoundTrip() throws Exception {
+        assertRoundTrip(new DiskLruCache.Options());
+        assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    }
+
+    @Test public void binaryJournalRoundTrip() throws Exception {
+        assertRoundTrip(binaryOptions());
+        assertTrue(new File(directory, DiskLruCache.BINARY_JOURNAL_FILE).exists());
+        assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    }
+
+    @Test public void packedJournalRoundTrip() throws Exception {
+        assertRoundTrip(packedOptions(1024));
+        assertTrue(new File(directory, SegmentStore.SEGMENT_FILE_PREFIX + 0).exists());
+    }
+
+    @Test public void checkpointRoundTrip() throws Exception {
+        DiskLruCache.Options options = binaryOptions();
+        options.checkpointInterval = 1;
+        assertRoundTrip(options);
+        assertTrue(new File(directory, DiskLruCache.INDEX_FILE).exists());
+        assertTrue(cache.openedFromCheckpoint());
+    }
+
+    @Test public void checkpointWrittenByCleanupThreadSurvivesCrash() throws Exception {
+        DiskLruCache.Options options = binaryOptions();
+        options.checkpointInterval = 1;
+        cache = open(options);
+        set("k1", "a", "bb");
+        set("k2", "ccc", "dddd");
+        File index = new File(directory, DiskLruCache.INDEX_FILE);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!index.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(index.exists());
+
+        // the process dies without closing the cache
+        File crashed = File.createTempFile("DiskLruCacheTest", "");
+        crashed.delete();
+        crashed.mkdirs();
+        try {
+            synchronized (cache) {
+                cache.flush();
+                for (File file : directory.listFiles()) {
+                    copy(file, new File(crashed, file.getName()));
+                }
+            }
+            DiskLruCache reopened = DiskLruCache.open(crashed, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE, options);
+            try {
+                assertTrue(reopened.openedFromCheckpoint());
+                DiskLruCache.Snapshot snapshot = reopened.get("k2");
+                assertEquals("ccc", snapshot.getString(0));
+                assertEquals("dddd", snapshot.getString(1));
+                snapshot.close();
+                assertEquals(10, reopened.size());
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            for (File file : crashed.listFiles()) {
+                file.delete();
+            }
+            crashed.delete();
+        }
+    }
+
+    @Test public void textJournalIsMigratedToBinary() throws Exception {
+        cache = open(new DiskLruCache.Options());
+        set("k1", "a", "b");
+        set("k2", "c", "d");
+        cache.close();
+
+        cache = open(binaryOptions());
+        assertValue("k1", "a", "b");
+        assertValue("k2", "c", "d");
+        assertEquals(4, cache.size());
+        assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+        assertFalse(new File(directory, "k1.0").exists());
+
+        cache.close();
+        cache = open(binaryOptions());
+        assertValue("k1", "a", "b");
+    }
+
+    @Test public void textJournalIsMigratedToPackedStorage() throws Exception {
+        cache = open(new DiskLruCache.Options());
+        set("k1", "a", "b");
+        set("k2", "c", "d");
+        cache.close();
+
+        cache = open(packedOptions(1024));
+        assertValue("k1", "a", "b");
+        assertValue("k2", "c", "d");
+        assertEquals(4, cache.size());
+        for (String name : directory.list()) {
+            assertTrue(name, name.startsWith("journal") || name.startsWith(SegmentStore.SEGMENT_FILE_PREFIX));
+        }
+
+        cache.close();
+        cache = open(packedOptions(1024));
+        assertValue("k2", "c", "d");
+    }
+
+    @Test public void binaryJournalIsImportedIntoPackedStorage() throws Exception {
+        cache = open(binaryOptions());
+        set("k1", "a", "b");
+        cache.close();
+
+        cache = open(packedOptions(1024));
+        assertValue("k1", "a", "b");
+        cache.close();
+        cache = open(packedOptions(1024));
+        assertValue("k1", "a", "b");
+    }
+
+    @Test public void truncatedRecordIsDroppedAndJournalStaysReadable() throws Exception {
+        cache = open(binaryOptions());
+        set("k1", "a", "b");
+        set("k2", "c", "d");
+        cache.close();
+        // the process died while appending the CLEAN record of k2
+        truncate(new File(directory, DiskLruCache.BINARY_JOURNAL_FILE), 1);
+
+        cache = open(binaryOptions());
+        assertValue("k1", "a", "b");
+        assertNull(cache.get("k2"));
+        set("k3", "e", "f");
+        cache.close();
+
+        cache = open(binaryOptions());
+        assertValue("k1", "a", "b");
+        assertValue("k3", "e", "f");
+    }
+
+    @Test public void truncatedPackedJournalStaysReadable() throws Exception {
+        cache = open(packedOptions(1024));
+        set("k1", "a", "b");
+        set("k2", "c", "d");
+        cache.close();
+        truncate(new File(directory, DiskLruCache.BINARY_JOURNAL_FILE), 1);
+
+        cache = open(packedOptions(1024));
+        assertValue("k1", "a", "b");
+        set("k3", "e", "f");
+        cache.close();
+
+        cache = open(packedOptions(1024));
+        assertValue("k1", "a", "b");
+        assertValue("k3", "e", "f");
+    }
+
+    @Test public void truncatedHeaderStartsOverEmpty() throws Exception {
+        cache = open(binaryOptions());
+        set("k1", "a", "b");
+        cache.close();
+        File journal = new File(directory, DiskLruCache.BINARY_JOURNAL_FILE);
+        truncate(journal, journal.length() - 3);
+
+        cache = open(binaryOptions());
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.size());
+        set("k1", "c", "d");
+        cache.close();
+
+        cache = open(binaryOptions());
+        assertValue("k1", "c", "d");
+    }
+
+    @Test public void packedGarbageCountsTowardsSize() throws Exception {
+        cache = open(packedOptions(1024));
+        set("k1", "a", "b");
+        set("k1", "c", "d");
+        assertEquals(4, cache.size());
+    }
+
+    @Test public void compactionReclaimsOverwrittenValues() throws Exception {
+        DiskLruCache.Options options = packedOptions(256);
+        String first = repeat('x', 99);
+        String second = repeat('y', 99);
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, 2500, options);
+        for (int i = 0; i < 20; i++) {
+            set("k" + i, "1", first);
+        }
+        // every segment keeps live values next to the garbage left by the
+        // overwrites, pushing the cache over its size: only compaction can
+        // bring it back under without evicting
+        for (int i = 0; i < 20; i += 2) {
+            set("k" + i, "2", second);
+        }
+        awaitSizeAtMost(2500);
+
+        for (int i = 0; i < 20; i++) {
+            assertValue("k" + i, i % 2 == 0 ? "2" : "1", i % 2 == 0 ? second : first);
+        }
+        cache.close();
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, 2500, options);
+        assertEquals(segmentBytes(), cache.size());
+        assertTrue(cache.size() <= 2500);
+        for (int i = 0; i < 20; i++) {
+            assertValue("k" + i, i % 2 == 0 ? "2" : "1", i % 2 == 0 ? second : first);
+        }
+    }
+
+    @Test public void mappedValueOutlivesSnapshot() throws Exception {
+        assertMappedValueOutlivesSnapshot(binaryOptions());
+    }
+
+    @Test public void mappedPackedValueOutlivesSnapshot() throws Exception {
+        assertMappedValueOutlivesSnapshot(packedOptions(1024));
+    }
+
+    @Test public void textJournalDropsFetchCosts() throws Exception {
+        cache = open(new DiskLruCache.Options());
+        set("k1", "a", "b", 5);
+        cache.get("k1").close();
+        cache.close();
+
+        cache = open(new DiskLruCache.Options());
+        assertValue("k1", "a", "b");
+    }
+
+    @Test public void gdsfEvictsLowestPriorityFirst() throws Exception {
+        DiskLruCache.Options options = binaryOptions();
+        options.evictionPolicy = DiskLruCache.EvictionPolicy.GDSF;
+        cache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, 8, options);
+        set("cheap", "a", "b", 1);
+        set("read", "c", "d", 1);
+        set("costly", "e", "f", 5);
+        set("recent", "g", "h", 2);
+        // read twice, it outweighs the more recent entry
+        for (int i = 0; i < 2; i++) {
+            cache.get("read").close();
+        }
+        set("new", "i", "j", 3);
+        cache.flush();
+        assertNull(cache.get("cheap"));
+
+        set("newer", "k", "l", 3);
+        cache.flush();
+        assertNull(cache.get("recent"));
+        assertValue("read", "c", "d");
+        assertValue("costly", "e", "f");
+        assertValue("new", "i", "j");
+        assertValue("newer", "k", "l");
+        assertEquals(8, cache.size());
+    }
+
+    @Test public void pendingReadFollowsEditor() throws Exception {
+        DiskLruCache.Options options = binaryOptions();
+        options.readWhileWrite = true;
+        cache = open(options);
+        DiskLruCache.Editor editor = cache.edit("k1");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertTrue(snapshot.isPending());
+        editor.set(0, "a");
+        editor.set(1, "b");
+        editor.commit();
+        assertEquals("a", snapshot.getString(0));
+        assertEquals("b", snapshot.getString(1));
+        snapshot.close();
+    }
+
+    @Test public void pendingReadTimesOutWhenEditorStalls() throws Exception {
+        DiskLruCache.Options options = binaryOptions();
+        options.readWhileWrite = true;
+        options.pendingReadTimeoutMillis = 100;
+        cache = open(options);
+        DiskLruCache.Editor editor = cache.edit("k1");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        InputStream in = snapshot.getInputStream(0);
+        long start = System.currentTimeMillis();
+        try {
+            in.read();
+            fail();
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        snapshot.close();
+        editor.abort();
+    }
+
+    private void assertRoundTrip(DiskLruCache.Options options) throws Exception {
+        cache = open(options);
+        set("k1", "a", "bb");
+        set("k2", "ccc", "dddd");
+        set("k3", "e", "f");
+        set("k1", "g", "h");
+        cache.remove("k3");
+        long size = cache.size();
+        cache.close();
+
+        cache = open(options);
+        assertValue("k1", "g", "h");
+        assertValue("k2", "ccc", "dddd");
+        assertNull(cache.get("k3"));
+        assertEquals(size, cache.size());
+    }
+
+    private void assertMappedValueOutlivesSnapshot(DiskLruCache.Options options) throws Exception {
+        cache = open(options);
+        set("k1", "a", "bcd");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        ByteBuffer mapped = snapshot.map(1);
+        snapshot.close();
+
+        set("k1", "e", "fgh");
+        cache.remove("k1");
+        cache.flush();
+        assertEquals("bcd", string(mapped));
+    }
+
+    private DiskLruCache open(DiskLruCache.Options options) throws IOException {
+        return DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE, options);
+    }
+
+    private static DiskLruCache.Options binaryOptions() {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.binaryJournal = true;
+        return options;
+    }
+
+    private static DiskLruCache.Options packedOptions(long segmentSize) {
+        DiskLruCache.Options options = binaryOptions();
+        options.packedStorage = true;
+        options.segmentSize = segmentSize;
+        return options;
+    }
+
+    private void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    private void set(String key, String value0, String value1, long fetchCost) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.setFetchCost(fetchCost);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertTrue("missing " + key, snapshot != null);
+        try {
+            assertEquals(value0, snapshot.getString(0));
+            assertEquals(value1, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /** Waits for the cleanup thread to bring the cache down to {@code size}. */
+    private void awaitSizeAtMost(long size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.size() > size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("size " + cache.size(), cache.size() <= size);
+    }
+
+    private long segmentBytes() {
+        long total = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith(SegmentStore.SEGMENT_FILE_PREFIX)) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(from, "r");
+        RandomAccessFile out = new RandomAccessFile(to, "rw");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            out.write(bytes);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void truncate(File file, long bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String string(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
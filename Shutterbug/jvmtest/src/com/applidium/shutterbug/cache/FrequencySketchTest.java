@@ -0,0 +1,65 @@
+package com.applidium.shutterbug.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class FrequencySketchTest {
+    @Test public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(64, new FrequencySketch(0).capacity());
+        assertEquals(64, new FrequencySketch(64).capacity());
+        assertEquals(1024, new FrequencySketch(1000).capacity());
+    }
+
+    @Test public void incrementRaisesFrequency() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 3; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(3, sketch.frequency("a"));
+        assertEquals(0, sketch.frequency("b"));
+    }
+
+    @Test public void frequencySaturatesAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test public void countersAreHalvedAfterSampleSizeAdditions() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("hot");
+        }
+        // ten additions per counter slot trigger the halving; saturated
+        // increments of "hot" don't count
+        int sampleSize = 10 * sketch.capacity();
+        for (int i = 0; i < sampleSize - 16; i++) {
+            sketch.increment("key" + i);
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        sketch.increment("last");
+        assertEquals(7, sketch.frequency("hot"));
+    }
+
+    @Test public void bulkIncrementDoesNotCountTowardsHalving() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        sketch.increment("hot", 15);
+        for (int i = 0; i < 10 * sketch.capacity(); i++) {
+            sketch.increment("key" + i, 1);
+        }
+        assertEquals(15, sketch.frequency("hot"));
+    }
+
+    @Test public void bulkIncrementSaturates() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        sketch.increment("a", 20);
+        assertEquals(15, sketch.frequency("a"));
+        sketch.increment("b", 4);
+        assertTrue(sketch.frequency("b") >= 4);
+    }
+}
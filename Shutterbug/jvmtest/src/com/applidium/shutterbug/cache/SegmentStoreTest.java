@@ -0,0 +1,201 @@
+package com.applidium.shutterbug.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public final class SegmentStoreTest {
+    private static final long SEGMENT_SIZE = 16;
+
+    private File directory;
+    private SegmentStore store;
+
+    @Before public void setUp() throws Exception {
+        directory = File.createTempFile("SegmentStoreTest", "");
+        directory.delete();
+        directory.mkdirs();
+        store = new SegmentStore(directory, SEGMENT_SIZE);
+        store.open();
+    }
+
+    @After public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test public void finishedAppendIsLive() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        long offset = appender.position();
+        write(appender, "abc");
+        store.finishAppend(appender);
+
+        assertEquals("abc", read(appender.segmentId(), offset, 3));
+        assertEquals(3, store.totalLength());
+        assertEquals(0, store.garbage());
+    }
+
+    @Test public void abortedAppendIsGarbage() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        write(appender, "abc");
+        store.abortAppend(appender);
+
+        assertEquals(3, store.garbage());
+    }
+
+    @Test public void concurrentAppendersWriteToDifferentSegments() throws Exception {
+        SegmentStore.Appender a = store.beginAppend();
+        SegmentStore.Appender b = store.beginAppend();
+        write(a, "aaa");
+        write(b, "bbb");
+        store.finishAppend(a);
+        store.finishAppend(b);
+
+        assertNotEquals(a.segmentId(), b.segmentId());
+        assertEquals("aaa", read(a.segmentId(), 0, 3));
+        assertEquals("bbb", read(b.segmentId(), 0, 3));
+    }
+
+    @Test public void appendingResumesInSegmentUntilFull() throws Exception {
+        SegmentStore.Appender a = store.beginAppend();
+        write(a, "0123456789");
+        store.finishAppend(a);
+        SegmentStore.Appender b = store.beginAppend();
+        assertEquals(a.segmentId(), b.segmentId());
+        assertEquals(10, b.position());
+        write(b, "0123456789");
+        store.finishAppend(b);
+
+        // past the segment size: sealed
+        SegmentStore.Appender c = store.beginAppend();
+        assertNotEquals(a.segmentId(), c.segmentId());
+        store.abortAppend(c);
+    }
+
+    @Test public void releasingLastLiveBytesDeletesSealedSegment() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        write(appender, "0123456789abcdef");
+        store.finishAppend(appender);
+        long id = appender.segmentId();
+        assertTrue(store.getSegmentFile(id).exists());
+
+        store.release(id, 10);
+        assertTrue(store.hasSegment(id));
+        store.release(id, 6);
+        assertFalse(store.hasSegment(id));
+        assertFalse(store.getSegmentFile(id).exists());
+    }
+
+    @Test public void mostlyGarbageSealedSegmentNeedsCompaction() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        write(appender, "0123456789abcdef");
+        store.finishAppend(appender);
+        long id = appender.segmentId();
+        assertEquals(-1, store.segmentToCompact(false));
+
+        store.release(id, 9);
+        assertEquals(id, store.segmentToCompact(false));
+    }
+
+    @Test public void reclaimingSealsWritableSegment() throws Exception {
+        SegmentStore.Appender a = store.beginAppend();
+        write(a, "aaaa");
+        store.finishAppend(a);
+        SegmentStore.Appender b = store.beginAppend();
+        write(b, "bbbb");
+        store.finishAppend(b);
+        long id = a.segmentId();
+        store.release(id, 4);
+
+        // writable: only compacted when any garbage has to be reclaimed
+        assertEquals(-1, store.segmentToCompact(false));
+        assertEquals(id, store.segmentToCompact(true));
+        SegmentStore.Appender c = store.beginAppend();
+        assertNotEquals(id, c.segmentId());
+        store.abortAppend(c);
+    }
+
+    @Test public void reclaimingDeletesSegmentWithoutLiveBytes() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        write(appender, "abc");
+        store.finishAppend(appender);
+        long id = appender.segmentId();
+        store.release(id, 3);
+
+        assertEquals(id, store.segmentToCompact(true));
+        assertFalse(store.hasSegment(id));
+        assertEquals(0, store.garbage());
+    }
+
+    @Test public void heldSegmentIsNeverCompacted() throws Exception {
+        SegmentStore.Appender appender = store.beginAppend();
+        write(appender, "abc");
+        store.finishAppend(appender);
+        store.release(appender.segmentId(), 3);
+        SegmentStore.Appender holder = store.beginAppend();
+        assertEquals(appender.segmentId(), holder.segmentId());
+
+        assertEquals(-1, store.segmentToCompact(true));
+        assertEquals(3, store.unreclaimableGarbage());
+        store.abortAppend(holder);
+    }
+
+    @Test public void openDeletesUnreferencedSegments() throws Exception {
+        store.close();
+        writeFile(new File(directory, SegmentStore.SEGMENT_FILE_PREFIX + 3), "live");
+        writeFile(new File(directory, SegmentStore.SEGMENT_FILE_PREFIX + 4), "dead");
+
+        store = new SegmentStore(directory, SEGMENT_SIZE);
+        store.addLive(3, 4);
+        store.open();
+        assertTrue(store.hasSegment(3));
+        assertFalse(store.hasSegment(4));
+        assertFalse(new File(directory, SegmentStore.SEGMENT_FILE_PREFIX + 4).exists());
+
+        // new values never go after bytes of a previous run
+        SegmentStore.Appender appender = store.beginAppend();
+        assertEquals(5, appender.segmentId());
+        store.abortAppend(appender);
+    }
+
+    private static void write(SegmentStore.Appender appender, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        appender.write(bytes, 0, bytes.length);
+    }
+
+    private String read(long id, long offset, long length) throws IOException {
+        InputStream in = store.openInputStream(id, offset, length);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.applidium.shutterbug.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public final class ShardedDiskLruCacheTest {
+    private static final int APP_VERSION = 100;
+    private static final int VALUE_COUNT = 1;
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    private File directory;
+    private ShardedDiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        directory = File.createTempFile("ShardedDiskLruCacheTest", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        deleteRecursively(directory);
+    }
+
+    @Test public void reopeningWithSameShardCountKeepsValues() throws Exception {
+        cache = open(4);
+        set("k1", "a");
+        cache.close();
+
+        cache = open(4);
+        assertValue("k1", "a");
+    }
+
+    @Test public void singleShardToSeveralDeletesOldLayout() throws Exception {
+        cache = open(1);
+        set("k1", "a");
+        cache.close();
+        File otherFile = new File(directory, "other");
+        write(otherFile, "not the cache's");
+
+        cache = open(4);
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.size());
+        for (String name : directory.list()) {
+            assertTrue(name, name.startsWith(ShardedDiskLruCache.SHARD_DIRECTORY_PREFIX)
+                    || name.equals(ShardedDiskLruCache.SHARD_COUNT_FILE) || name.equals("other"));
+        }
+        assertTrue(otherFile.exists());
+    }
+
+    @Test public void severalShardsToSingleDeletesOldLayout() throws Exception {
+        cache = open(4);
+        set("k1", "a");
+        cache.close();
+
+        cache = open(1);
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.size());
+        for (String name : directory.list()) {
+            assertFalse(name, name.startsWith(ShardedDiskLruCache.SHARD_DIRECTORY_PREFIX));
+        }
+    }
+
+    @Test public void changingShardCountDeletesOldShards() throws Exception {
+        cache = open(4);
+        for (int i = 0; i < 20; i++) {
+            set("k" + i, "v" + i);
+        }
+        cache.close();
+
+        cache = open(2);
+        for (int i = 0; i < 20; i++) {
+            assertNull(cache.get("k" + i));
+        }
+        assertEquals(0, cache.size());
+        assertFalse(new File(directory, ShardedDiskLruCache.SHARD_DIRECTORY_PREFIX + 3).exists());
+    }
+
+    @Test public void unrecordedShardCountIsInferredFromShardDirectories() throws Exception {
+        cache = open(4);
+        set("k1", "a");
+        cache.close();
+        // written by a version that did not record the shard count
+        new File(directory, ShardedDiskLruCache.SHARD_COUNT_FILE).delete();
+
+        cache = open(4);
+        assertValue("k1", "a");
+    }
+
+    private ShardedDiskLruCache open(int shardCount) throws IOException {
+        return ShardedDiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE, shardCount);
+    }
+
+    private void set(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String value) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertEquals(value, snapshot.getString(0));
+        snapshot.close();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,69 @@
+package com.applidium.shutterbug.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+public final class CacheKeyTest {
+    @Test public void stringMatchesMd5OfStringKey() throws Exception {
+        String[] prefixes = {
+                "", "http://example.com/image.png", "https://example.com/a?b=c&d=e",
+                "http://example.com/\u00e9t\u00e9/\u65e5\u672c.jpg", "custom-key"
+        };
+        int[] sizes = { 0, 1, 9, 10, 200, 1920, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (String prefix : prefixes) {
+            for (int width : sizes) {
+                for (int height : sizes) {
+                    assertEquals(prefix + " " + width + "x" + height, md5Hex(prefix, width, height),
+                            CacheKey.of(prefix, width, height).toString());
+                }
+            }
+        }
+    }
+
+    @Test public void stringKeepsLeadingZeros() throws Exception {
+        // Find a key whose digest starts with a zero byte, which a
+        // BigInteger "%x" form would have dropped
+        for (int i = 0; ; i++) {
+            String expected = md5Hex("k" + i, 0, 0);
+            if (expected.startsWith("00")) {
+                String actual = CacheKey.of("k" + i, 0, 0).toString();
+                assertEquals(expected, actual);
+                assertEquals(32, actual.length());
+                return;
+            }
+        }
+    }
+
+    @Test public void encodedPrefixGivesSameKey() {
+        String prefix = "http://example.com/\u00e9.png";
+        assertEquals(CacheKey.of(prefix, 100, 50), CacheKey.of(CacheKey.encodePrefix(prefix), 100, 50));
+    }
+
+    @Test public void equalityFollowsDigest() {
+        CacheKey key = CacheKey.of("a", 1, 2);
+        assertEquals(key, new CacheKey(key.getHigh(), key.getLow()));
+        assertEquals(key.hashCode(), new CacheKey(key.getHigh(), key.getLow()).hashCode());
+        assertFalse(key.equals(CacheKey.of("a", 2, 1)));
+    }
+
+    @Test public void stringIsMemoized() {
+        CacheKey key = CacheKey.of("a", 1, 2);
+        assertSame(key.toString(), key.toString());
+    }
+
+    /** The key computed as it was before {@link CacheKey}, from a string. */
+    private static String md5Hex(String prefix, int maxWidth, int maxHeight) throws Exception {
+        String key = prefix + "w=" + maxWidth + "&h=" + maxHeight;
+        byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
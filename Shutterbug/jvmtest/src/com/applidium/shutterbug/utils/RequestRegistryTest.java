@@ -0,0 +1,192 @@
+package com.applidium.shutterbug.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class RequestRegistryTest {
+    private static final String URL = "http://example.com/a.png";
+
+    private final RequestRegistry<TestRequest, Object> registry = new RequestRegistry<TestRequest, Object>();
+    private final Object listener = new Object();
+    private final Object otherListener = new Object();
+
+    @Test public void cancelDuringCacheLookup() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        assertTrue(registry.isCacheRequest(request));
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Collections.emptyList(), registry.cancel(listener, canceled));
+        assertEquals(Arrays.asList(request), canceled);
+        assertFalse(registry.isCacheRequest(request));
+        assertFalse(registry.removeCacheRequest(request));
+        assertNull(registry.moveToDownload(request, new Object()));
+        assertFalse(registry.removeDeliveredRequest(request));
+        assertEquals(0, registry.size());
+    }
+
+    @Test public void cancelDuringDownloadReturnsIdleDownloader() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        Object downloader = new Object();
+        assertSame(downloader, registry.moveToDownload(request, downloader));
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Arrays.asList(downloader), registry.cancel(listener, canceled));
+        assertEquals(Arrays.asList(request), canceled);
+        assertEquals(Collections.emptyList(), registry.removeDownloader(downloader));
+        assertFalse(registry.removeDeliveredRequest(request));
+        assertEquals(0, registry.size());
+    }
+
+    @Test public void cancelAfterCacheLookupBeforeDelivery() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        assertTrue(registry.removeCacheRequest(request));
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Collections.emptyList(), registry.cancel(listener, canceled));
+        assertEquals(Arrays.asList(request), canceled);
+        assertFalse(registry.removeDeliveredRequest(request));
+    }
+
+    @Test public void cancelAfterDownloadBeforeDelivery() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        Object downloader = new Object();
+        registry.moveToDownload(request, downloader);
+        assertEquals(Arrays.asList(request), registry.removeDownloader(downloader));
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Collections.emptyList(), registry.cancel(listener, canceled));
+        assertEquals(Arrays.asList(request), canceled);
+        assertFalse(registry.removeDeliveredRequest(request));
+    }
+
+    @Test public void cancelAfterDeliveryDoesNothing() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        registry.removeCacheRequest(request);
+        assertTrue(registry.removeDeliveredRequest(request));
+        assertFalse(registry.removeDeliveredRequest(request));
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Collections.emptyList(), registry.cancel(listener, canceled));
+        assertTrue(canceled.isEmpty());
+    }
+
+    @Test public void requestsOfSameUrlShareDownloader() {
+        TestRequest first = new TestRequest(URL, listener);
+        TestRequest second = new TestRequest(URL, otherListener);
+        registry.addCacheRequest(first);
+        registry.addCacheRequest(second);
+        Object downloader = new Object();
+        assertSame(downloader, registry.moveToDownload(first, downloader));
+        assertSame(downloader, registry.moveToDownload(second, new Object()));
+        assertEquals(2, registry.size());
+
+        assertEquals(Arrays.asList(first, second), registry.removeDownloader(downloader));
+        assertEquals(0, registry.size());
+        assertTrue(registry.removeDeliveredRequest(first));
+        assertTrue(registry.removeDeliveredRequest(second));
+    }
+
+    @Test public void requestsOfOtherUrlsGetTheirOwnDownloader() {
+        TestRequest first = new TestRequest(URL, listener);
+        TestRequest second = new TestRequest("http://example.com/b.png", listener);
+        registry.addCacheRequest(first);
+        registry.addCacheRequest(second);
+        Object downloader = new Object();
+        Object otherDownloader = new Object();
+        assertSame(downloader, registry.moveToDownload(first, downloader));
+        assertSame(otherDownloader, registry.moveToDownload(second, otherDownloader));
+        assertEquals(Arrays.asList(first), registry.removeDownloader(downloader));
+    }
+
+    @Test public void sharedDownloaderIsNotIdleWhileARequestWaits() {
+        TestRequest first = new TestRequest(URL, listener);
+        TestRequest second = new TestRequest(URL, otherListener);
+        registry.addCacheRequest(first);
+        registry.addCacheRequest(second);
+        Object downloader = new Object();
+        registry.moveToDownload(first, downloader);
+        registry.moveToDownload(second, new Object());
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        assertEquals(Collections.emptyList(), registry.cancel(listener, canceled));
+        assertEquals(Arrays.asList(first), canceled);
+        assertEquals(Arrays.asList(downloader), registry.cancel(otherListener, canceled));
+        assertEquals(Arrays.asList(first, second), canceled);
+    }
+
+    @Test public void idleDownloaderIsReplacedForLaterRequests() {
+        TestRequest first = new TestRequest(URL, listener);
+        registry.addCacheRequest(first);
+        Object downloader = new Object();
+        registry.moveToDownload(first, downloader);
+        registry.cancel(listener, new ArrayList<TestRequest>());
+
+        TestRequest second = new TestRequest(URL, otherListener);
+        registry.addCacheRequest(second);
+        Object newDownloader = new Object();
+        assertSame(newDownloader, registry.moveToDownload(second, newDownloader));
+
+        // The canceled download ending late doesn't unregister its successor
+        assertEquals(Collections.emptyList(), registry.removeDownloader(downloader));
+        TestRequest third = new TestRequest(URL, listener);
+        registry.addCacheRequest(third);
+        assertSame(newDownloader, registry.moveToDownload(third, new Object()));
+        assertEquals(Arrays.asList(second, third), registry.removeDownloader(newDownloader));
+    }
+
+    @Test public void cancelOnlyAffectsRequestsOfListener() {
+        TestRequest request = new TestRequest(URL, listener);
+        TestRequest otherRequest = new TestRequest("http://example.com/b.png", otherListener);
+        registry.addCacheRequest(request);
+        registry.addCacheRequest(otherRequest);
+
+        List<TestRequest> canceled = new ArrayList<TestRequest>();
+        registry.cancel(listener, canceled);
+        assertEquals(Arrays.asList(request), canceled);
+        assertTrue(registry.isCacheRequest(otherRequest));
+        assertEquals(1, registry.size());
+    }
+
+    @Test public void requestIsRegisteredOnce() {
+        TestRequest request = new TestRequest(URL, listener);
+        registry.addCacheRequest(request);
+        registry.addCacheRequest(request);
+        assertEquals(1, registry.size());
+        assertTrue(registry.removeCacheRequest(request));
+        assertTrue(registry.removeDeliveredRequest(request));
+        assertFalse(registry.removeDeliveredRequest(request));
+    }
+
+    private static final class TestRequest implements RequestRegistry.Request {
+        private final String url;
+        private final Object listener;
+
+        TestRequest(String url, Object listener) {
+            this.url = url;
+            this.listener = listener;
+        }
+
+        @Override public String getUrl() {
+            return url;
+        }
+
+        @Override public Object getListener() {
+            return listener;
+        }
+    }
+}
@@ -16,6 +16,10 @@ import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListene
 public class FetchableImageView extends ImageView implements ShutterbugManagerListener {
 
     public interface FetchableImageViewListener {
+        /**
+         * @param bitmap shown by the view until it is given another image,
+         *            after which it may be decoded into again
+         */
         void onImageFetched(Bitmap bitmap, String url);
 
         void onImageFailure(String url);
@@ -25,6 +29,8 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
     private FetchableImageViewListener mListener;
     private int                        mMaxWidth;
     private int                        mMaxHeight;
+    // The image shown, handed back to the manager once replaced
+    private DownloaderImage            mDownloaderImage;
 
     public FetchableImageView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -55,6 +61,7 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
     public void setImage(CustomCacheKeyObject object, Drawable placeholderDrawable) {
         mShutterbugManager.cancel(this);
         setImageDrawable(placeholderDrawable);
+        releaseImage();
         if (object != null) {
             mShutterbugManager.download(object, mMaxWidth, mMaxHeight, this);
         }
@@ -63,6 +70,7 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
     public void setImage(String url, Drawable placeholderDrawable) {
         mShutterbugManager.cancel(this);
         setImageDrawable(placeholderDrawable);
+        releaseImage();
         if (url != null) {
             mShutterbugManager.download(url, mMaxWidth, mMaxHeight, this);
         }
@@ -75,6 +83,8 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
     @Override
     public void onImageSuccess(ShutterbugManager imageManager, DownloaderImage downloaderImage, String url) {
         setImageBitmap(downloaderImage.getBitmap());
+        releaseImage();
+        mDownloaderImage = downloaderImage;
         requestLayout();
         if (mListener != null) {
             mListener.onImageFetched(downloaderImage.getBitmap(), url);
@@ -88,4 +98,11 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         }
     }
 
+    private void releaseImage() {
+        if (mDownloaderImage != null) {
+            mShutterbugManager.release(mDownloaderImage);
+            mDownloaderImage = null;
+        }
+    }
+
 }
@@ -0,0 +1,307 @@
+package com.applidium.shutterbug.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps that nothing displays anymore, kept so that decoders can decode into
+ * them through {@link BitmapFactory.Options#inBitmap} instead of allocating a
+ * new bitmap. Bitmaps are bucketed by their size in bytes and the pool drops
+ * the oldest ones once its byte budget is exceeded.
+ *
+ * <p>Decoding into an existing bitmap needs Honeycomb. Before KitKat the
+ * bitmap must have the exact dimensions of the decoded image and the image
+ * must not be subsampled; from KitKat on, any bitmap at least as large works.
+ * On older versions the pool stays empty.
+ */
+public class BitmapPool {
+    private static final String                TAG            = "BitmapPool";
+    /** Largest ratio between a reused bitmap's size and the size needed. */
+    private static final int                   MAX_SIZE_RATIO = 2;
+    /** KitKat, which the compile SDK does not know yet. */
+    private static final int                   KITKAT         = 19;
+
+    private static Method                      sGetAllocationByteCount;
+    private static Method                      sReconfigure;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets   = new TreeMap<Integer, LinkedList<Bitmap>>();
+    /** Pooled bitmaps from oldest to newest. */
+    private final LinkedHashSet<Bitmap>        mBitmaps       = new LinkedHashSet<Bitmap>();
+    private int                                mMaxSize;
+    private int                                mSize;
+
+    private int                                mPutCount;
+    private int                                mHitCount;
+    private int                                mMissCount;
+    private int                                mEvictionCount;
+
+    /**
+     * @param maxSize the maximum number of bytes of the pooled bitmaps
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    private static boolean canReuse() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    private static boolean canReuseAnySize() {
+        return Build.VERSION.SDK_INT >= KITKAT && kitKatMethods();
+    }
+
+    /**
+     * Looks up the KitKat methods of {@link Bitmap}, which are called through
+     * reflection. Returns false if they are missing.
+     */
+    private static synchronized boolean kitKatMethods() {
+        if (sReconfigure == null) {
+            try {
+                sGetAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
+                sReconfigure = Bitmap.class.getMethod("reconfigure", int.class, int.class, Bitmap.Config.class);
+            } catch (NoSuchMethodException e) {
+                Log.e(TAG, e.getMessage(), e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        if (canReuseAnySize()) {
+            try {
+                return (Integer) sGetAllocationByteCount.invoke(bitmap);
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Gives {@code bitmap} new dimensions within its allocation, returning
+     * false if it could not.
+     */
+    private static boolean reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        try {
+            sReconfigure.invoke(bitmap, width, height, config);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * Adds {@code bitmap} to the pool. The caller must not use it anymore,
+     * since a later decode may overwrite it. Returns false if the bitmap
+     * cannot be reused and was not added.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!canReuse() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        int byteCount = byteCount(bitmap);
+        if (byteCount > mMaxSize || mBitmaps.contains(bitmap)) {
+            return false;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(byteCount, bucket);
+        }
+        bucket.addLast(bitmap);
+        mBitmaps.add(bitmap);
+        mSize += byteCount;
+        mPutCount++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Removes and returns a bitmap that an image of {@code width} by
+     * {@code height} pixels, decoded with {@code inSampleSize}, can be decoded
+     * into, or null if the pool has none. {@code width} and {@code height}
+     * are the dimensions before subsampling.
+     */
+    public synchronized Bitmap get(int width, int height, int inSampleSize, Bitmap.Config config) {
+        Bitmap bitmap = canReuse() ? find(width, height, inSampleSize, config) : null;
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        remove(bitmap);
+        return bitmap;
+    }
+
+    private Bitmap find(int width, int height, int inSampleSize, Bitmap.Config config) {
+        if (canReuseAnySize()) {
+            int sampledWidth = (width + inSampleSize - 1) / inSampleSize;
+            int sampledHeight = (height + inSampleSize - 1) / inSampleSize;
+            int needed = sampledWidth * sampledHeight * bytesPerPixel(config);
+            Map.Entry<Integer, LinkedList<Bitmap>> bucket = mBuckets.ceilingEntry(needed);
+            if (bucket == null || bucket.getKey() > needed * MAX_SIZE_RATIO) {
+                return null;
+            }
+            return bucket.getValue().getFirst();
+        }
+        if (inSampleSize != 1) {
+            return null;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(width * height * bytesPerPixel(config));
+        if (bucket == null) {
+            return null;
+        }
+        for (Bitmap bitmap : bucket) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Bitmap bitmap) {
+        int byteCount = byteCount(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(byteCount);
+        }
+        mBitmaps.remove(bitmap);
+        mSize -= byteCount;
+    }
+
+    /**
+     * Prepares {@code options}, filled by a decode with
+     * {@link BitmapFactory.Options#inJustDecodeBounds}, for decoding into a
+     * pooled bitmap: the decoded bitmap is made mutable so it can be pooled in
+     * turn, and {@link BitmapFactory.Options#inBitmap} is set if the pool has
+     * a fitting bitmap. If decoding then fails with an
+     * {@link IllegalArgumentException}, decode again without
+     * {@link BitmapFactory.Options#inBitmap}.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        if (!canReuse()) {
+            return;
+        }
+        options.inMutable = true;
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        int inSampleSize = Math.max(options.inSampleSize, 1);
+        Bitmap inBitmap = get(options.outWidth, options.outHeight, inSampleSize, config);
+        if (inBitmap != null && canReuseAnySize()
+                && !reconfigure(inBitmap, (options.outWidth + inSampleSize - 1) / inSampleSize,
+                        (options.outHeight + inSampleSize - 1) / inSampleSize, config)) {
+            inBitmap = null;
+        }
+        options.inBitmap = inBitmap;
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Bitmap> oldest = mBitmaps.iterator();
+        while (mSize > maxSize && oldest.hasNext()) {
+            Bitmap bitmap = oldest.next();
+            int byteCount = byteCount(bitmap);
+            LinkedList<Bitmap> bucket = mBuckets.get(byteCount);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(byteCount);
+            }
+            oldest.remove();
+            mSize -= byteCount;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Sets the byte budget of the pool, dropping the oldest bitmaps if it
+     * shrinks.
+     */
+    public synchronized void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    public synchronized void evictAll() {
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the number of bytes of the pooled bitmaps.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes of the pooled bitmaps.
+     */
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of bitmaps added to the pool.
+     */
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a bitmap.
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of bitmaps dropped to stay within the budget.
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", mSize, mMaxSize,
+                mHitCount, mMissCount, hitPercent);
+    }
+}
@@ -0,0 +1,67 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading the remaining bytes of a {@link ByteBuffer},
+ * typically a value mapped with {@link DiskLruCache.Snapshot#map}. Reads copy
+ * straight from the buffer into the caller's array.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int              mMark;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mMark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        count = Math.min(count, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+}
@@ -0,0 +1,577 @@
+package com.applidium.shutterbug.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory cache with the same contract as {@link LruCache} that readers can
+ * use without taking a lock. Entries live in a {@link ConcurrentHashMap}; a
+ * hit only sets a reference bit on the entry, so lookups on the UI thread do
+ * not contend with decode threads inserting values.
+ *
+ * <p>Eviction approximates LRU with the CLOCK algorithm: entries sit in
+ * insertion order in a queue, and the eviction sweep gives every entry that
+ * was read since the sweep last passed it a second chance by moving it to the
+ * back of the queue with its bit cleared. Only the sweep itself is serialized.
+ *
+ * <p>With {@link Policy#WINDOW_TINY_LFU}, new entries first go through a
+ * small admission window and only replace an entry of the main cache if they
+ * have been requested at least as often recently, so that a single pass over
+ * many keys does not flush the entries that are requested over and over.
+ *
+ * <p>Sizes are measured by {@link #sizeOf} as in {@link LruCache}, and the
+ * cache may briefly exceed its max size while concurrent puts are trimmed.
+ */
+public class ConcurrentLruCache<K, V> {
+    /** How a full cache picks the entry to evict. */
+    public enum Policy {
+        /** Evict the least recently used entry, approximated by CLOCK. */
+        LRU,
+        /**
+         * Keep the last 1% of the cache, by size, in an LRU admission window,
+         * and at least the largest entry put so far. An entry leaving the
+         * window is only admitted to the main CLOCK cache if a frequency
+         * sketch estimates it was requested at least as often as the entry
+         * it would evict; otherwise it is the one evicted.
+         */
+        WINDOW_TINY_LFU
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    /** Entries in CLOCK order; may hold nodes that left the map. */
+    private final ConcurrentLinkedQueue<Node<K, V>> clock;
+    /** New entries in insertion order, or null without admission window. */
+    private final ConcurrentLinkedQueue<Node<K, V>> window;
+    /** Size of the nodes in {@link #window}, dead ones included. */
+    private final AtomicInteger                     windowSize   = new AtomicInteger();
+    private volatile int                            windowMaxSize;
+    /** Size of the largest entry put so far, which the window always fits. */
+    private final AtomicInteger                     maxEntrySize = new AtomicInteger();
+    private volatile FrequencySketch                sketch;
+    /** Guards the eviction sweep. */
+    private final Object                            evictionLock = new Object();
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private final AtomicInteger                     size         = new AtomicInteger();
+    private volatile int                            maxSize;
+    /** Nodes that left the map but may still be queued. */
+    private final AtomicInteger                     deadCount    = new AtomicInteger();
+
+    private final AtomicInteger                     putCount      = new AtomicInteger();
+    private final AtomicInteger                     createCount   = new AtomicInteger();
+    private final AtomicInteger                     evictionCount = new AtomicInteger();
+    private final AtomicInteger                     hitCount      = new AtomicInteger();
+    private final AtomicInteger                     missCount     = new AtomicInteger();
+
+    /**
+     * @param maxSize
+     *            for caches that do not override {@link #sizeOf}, this is the
+     *            maximum number of entries in the cache. For all other caches,
+     *            this is the maximum sum of the sizes of the entries in this
+     *            cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, Policy.LRU);
+    }
+
+    /**
+     * @param maxSize see {@link #ConcurrentLruCache(int)}
+     * @param policy how to pick the entry to evict when the cache is full
+     */
+    public ConcurrentLruCache(int maxSize, Policy policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, 4);
+        this.clock = new ConcurrentLinkedQueue<Node<K, V>>();
+        if (policy == Policy.WINDOW_TINY_LFU) {
+            this.window = new ConcurrentLinkedQueue<Node<K, V>>();
+            updateWindowMaxSize();
+            // Grown along with the number of entries, see trimToSize()
+            this.sketch = new FrequencySketch(0);
+        } else {
+            this.window = null;
+            this.windowMaxSize = 0;
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is marked as
+     * recently used. This returns null if a value is not cached and cannot be
+     * created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            node.referenced = true;
+            hitCount.incrementAndGet();
+            return node.value;
+        }
+        missCount.incrementAndGet();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map may
+         * be different when create() returns. If a conflicting value was added
+         * to the map while create() was working, we leave that value in the map
+         * and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        createCount.incrementAndGet();
+        Node<K, V> created = newNode(key, createdValue);
+        Node<K, V> existing = map.putIfAbsent(key, created);
+        if (existing != null) {
+            entryRemoved(false, key, createdValue, existing.value);
+            return existing.value;
+        }
+        size.addAndGet(created.size);
+        enqueue(created);
+        trimToSize(maxSize);
+        return createdValue;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is marked as recently
+     * used.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        putCount.incrementAndGet();
+        Node<K, V> node = newNode(key, value);
+        Node<K, V> previous = map.put(key, node);
+        size.addAndGet(node.size);
+        enqueue(node);
+        if (previous != null) {
+            unlinked(previous);
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    private Node<K, V> newNode(K key, V value) {
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        if (window != null) {
+            int largest;
+            while (node.size > (largest = maxEntrySize.get())) {
+                if (maxEntrySize.compareAndSet(largest, node.size)) {
+                    updateWindowMaxSize();
+                    break;
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Sizes the admission window to 1% of the cache, but never smaller than
+     * the largest entry: with entries as large as bitmaps, 1% of the cache
+     * may not hold a single one, and every new entry would skip the window.
+     */
+    private void updateWindowMaxSize() {
+        int maxSize = this.maxSize;
+        windowMaxSize = Math.min(maxSize, Math.max(maxSize / 100, maxEntrySize.get()));
+    }
+
+    private void enqueue(Node<K, V> node) {
+        if (window != null) {
+            windowSize.addAndGet(node.size);
+            window.offer(node);
+        } else {
+            clock.offer(node);
+        }
+    }
+
+    /**
+     * Accounts for {@code node} having been removed from the map by the
+     * caller. Map operations hand each node to exactly one caller, so its size
+     * is only subtracted once.
+     */
+    private void unlinked(Node<K, V> node) {
+        size.addAndGet(-node.size);
+        if (deadCount.incrementAndGet() > map.size() + 16) {
+            purgeDeadNodes();
+        }
+    }
+
+    /**
+     * Drops the nodes of replaced and removed entries from the CLOCK queue so
+     * that it stays proportional to the number of entries even when nothing
+     * needs to be evicted.
+     */
+    private void purgeDeadNodes() {
+        synchronized (evictionLock) {
+            purgeDeadNodes(clock);
+            if (window != null) {
+                windowSize.addAndGet(-purgeDeadNodes(window));
+            }
+        }
+    }
+
+    /** Returns the size of the nodes removed from {@code queue}. */
+    private int purgeDeadNodes(ConcurrentLinkedQueue<Node<K, V>> queue) {
+        int purgedSize = 0;
+        for (Iterator<Node<K, V>> i = queue.iterator(); i.hasNext(); ) {
+            Node<K, V> node = i.next();
+            if (map.get(node.key) != node) {
+                i.remove();
+                deadCount.decrementAndGet();
+                purgedSize += node.size;
+            }
+        }
+        return purgedSize;
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum size of the cache before returning. May be -1 to
+     *            evict even 0-sized elements.
+     */
+    private void trimToSize(int maxSize) {
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null && map.size() > sketch.capacity()) {
+            growSketch();
+        }
+        if (size.get() <= maxSize && (window == null || windowSize.get() <= windowMaxSize)) {
+            return;
+        }
+        synchronized (evictionLock) {
+            // Entries leaving the admission window, oldest first
+            List<Node<K, V>> candidates = null;
+            if (window != null) {
+                int windowLimit = maxSize < 0 ? -1 : windowMaxSize;
+                while (windowSize.get() > windowLimit) {
+                    Node<K, V> node = window.poll();
+                    if (node == null) {
+                        break;
+                    }
+                    windowSize.addAndGet(-node.size);
+                    if (map.get(node.key) != node) {
+                        deadCount.decrementAndGet();
+                        continue;
+                    }
+                    if (candidates == null) {
+                        candidates = new ArrayList<Node<K, V>>();
+                    }
+                    candidates.add(node);
+                }
+            }
+
+            while (size.get() > maxSize) {
+                Node<K, V> victim = nextVictim(maxSize >= 0);
+                Node<K, V> candidate = candidates == null || candidates.isEmpty() ? null : candidates.get(0);
+                if (victim == null && candidate == null) {
+                    // Concurrent puts trim again once their node is queued
+                    break;
+                }
+                if (candidate != null && (victim == null || maxSize < 0
+                        || this.sketch.frequency(candidate.key) < this.sketch.frequency(victim.key))) {
+                    // Not admitted; the victim keeps its place
+                    candidates.remove(0);
+                    if (victim != null) {
+                        clock.offer(victim);
+                    }
+                    evict(candidate, maxSize >= 0);
+                } else {
+                    evict(victim, false);
+                }
+            }
+
+            if (candidates != null) {
+                for (Node<K, V> candidate : candidates) {
+                    clock.offer(candidate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next entry the CLOCK sweep would evict off the queue, or
+     * returns null if the queue is empty.
+     *
+     * @param secondChance false to ignore reference bits
+     */
+    private Node<K, V> nextVictim(boolean secondChance) {
+        // Bound the sweep so that entries read continuously cannot keep it
+        // going forever
+        int chances = secondChance ? map.size() : 0;
+        while (true) {
+            Node<K, V> node = clock.poll();
+            if (node == null) {
+                return null;
+            }
+            if (map.get(node.key) != node) {
+                // Replaced or removed since it was queued
+                deadCount.decrementAndGet();
+                continue;
+            }
+            if (node.referenced && chances-- > 0) {
+                node.referenced = false;
+                clock.offer(node);
+                continue;
+            }
+            return node;
+        }
+    }
+
+    /**
+     * @param rejected true if {@code node} is evicted because it was not
+     *            admitted to the main cache
+     */
+    private void evict(Node<K, V> node, boolean rejected) {
+        if (map.remove(node.key, node)) {
+            size.addAndGet(-node.size);
+            evictionCount.incrementAndGet();
+            if (rejected) {
+                entryRejected(node.key, node.value);
+            } else {
+                entryRemoved(true, node.key, node.value, null);
+            }
+        } else {
+            // Lost a race with put() or remove(), which counted it dead
+            deadCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the frequency sketch with one sized for twice the current
+     * number of entries. The frequencies of the cached keys carry over, so
+     * that growing does not let new entries displace popular ones.
+     */
+    private void growSketch() {
+        synchronized (evictionLock) {
+            int entries = map.size();
+            FrequencySketch previous = sketch;
+            if (entries > previous.capacity()) {
+                FrequencySketch grown = new FrequencySketch(entries * 2);
+                for (K key : map.keySet()) {
+                    grown.increment(key, previous.frequency(key));
+                }
+                sketch = grown;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> previous = map.remove(key);
+        if (previous == null) {
+            return null;
+        }
+        unlinked(previous);
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     * <p>
+     * The method is called without synchronization: other threads may access
+     * the cache while this method is executing.
+     *
+     * @param evicted
+     *            true if the entry is being removed to make space, false if the
+     *            removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue
+     *            the new value for {@code key}, if it exists. If non-null, this
+     *            removal was caused by a {@link #put}. Otherwise it was caused
+     *            by an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Called instead of {@link #entryRemoved} for an entry evicted as it
+     * leaves the admission window of a {@link Policy#WINDOW_TINY_LFU} cache,
+     * because it was requested less often than the entry it would have
+     * replaced. Such an entry was put recently, so its value is likely still
+     * in use. The default implementation calls {@link #entryRemoved} with
+     * {@code evicted} set.
+     */
+    protected void entryRejected(K key, V value) {
+        entryRemoved(true, key, value, null);
+    }
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     * <p>
+     * If a value for {@code key} exists in the cache when this method returns,
+     * the created value will be released with {@link #entryRemoved} and
+     * discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units. The default implementation returns 1 so that size is
+     * the number of entries and max size is the maximum number of entries.
+     * <p>
+     * An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Sets the size of the cache, evicting entries if it shrinks.
+     *
+     * @param maxSize the new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (evictionLock) {
+            this.maxSize = maxSize;
+            if (window != null) {
+                updateWindowMaxSize();
+            }
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        return createCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache. Unlike
+     * {@link LruCache#snapshot}, the copy is not ordered by access.
+     */
+    public final Map<K, V> snapshot() {
+        Map<K, V> copy = new HashMap<K, V>();
+        for (Node<K, V> node : map.values()) {
+            copy.put(node.key, node.value);
+        }
+        return copy;
+    }
+
+    @Override
+    public final String toString() {
+        int hits = hitCount.get();
+        int accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize, hits,
+                accesses - hits, hitPercent);
+    }
+
+    private static final class Node<K, V> {
+        final K          key;
+        final V          value;
+        final int        size;
+        /** Set on every hit, cleared when the CLOCK sweep passes over it. */
+        volatile boolean referenced;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -17,16 +17,21 @@
 package com.applidium.shutterbug.cache;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -35,15 +40,26 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -93,13 +109,30 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String BINARY_JOURNAL_FILE = "journal.bin";
+    static final String BINARY_JOURNAL_FILE_TMP = "journal.bin.tmp";
+    static final String INDEX_FILE = "journal.index";
+    static final String INDEX_FILE_TMP = "journal.index.tmp";
+    static final String INDEX_FILE_CLEANUP_TMP = "journal.index.cleanup.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final int BINARY_MAGIC = 0x53424a4c; // "SBJL"
+    static final int BINARY_VERSION_1 = 1;
+    static final int BINARY_VERSION_PACKED = 2;
+    static final int INDEX_MAGIC = 0x5342494e; // "SBIN"
+    static final int INDEX_VERSION_3 = 3;
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    private static final byte OP_COST = 5;
+    private static final int KEY_DIGEST_LENGTH = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     /* XXX From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -186,6 +219,266 @@ public final class DiskLruCache implements Closeable {
         return result.toString();
     }
 
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        int b2 = in.read();
+        int b3 = in.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new EOFException();
+        }
+        return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    /** Writes {@code value} as an unsigned LEB128 varint and returns the new offset. */
+    private static int putVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void writeVarint(OutputStream out, byte[] scratch, long value) throws IOException {
+        out.write(scratch, 0, putVarint(scratch, 0, value));
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    /** Digests keys for the binary journal, one digest per thread. */
+    private static final ThreadLocal<MessageDigest> KEY_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                    | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
+    /**
+     * Settings applied when a cache is opened. The defaults produce a cache
+     * that reads and writes the classic text journal.
+     */
+    public static final class Options {
+        /**
+         * Store the journal in the compact binary format. Entries are
+         * identified by a 16-byte digest of their key, which also names their
+         * files. A text journal found in the directory is migrated on open.
+         */
+        public boolean binaryJournal;
+
+        /** When reads are written to the journal. */
+        public AccessRecording accessRecording = AccessRecording.IMMEDIATE;
+
+        /**
+         * Number of distinct entries read before pending reads are written,
+         * when using {@link AccessRecording#BATCHED}.
+         */
+        public int accessBatchSize = 64;
+
+        /**
+         * Write an index checkpoint once this many bytes were appended to the
+         * journal since the previous one, or 0 to never write checkpoints.
+         * Opening a cache with a checkpoint loads the index and only replays
+         * the journal written after it.
+         */
+        public long checkpointInterval;
+
+        /**
+         * Append values to large segment files instead of storing each value
+         * in a file of its own. Requires {@link #binaryJournal}. A cache
+         * stored one file per value is imported on open. Editors write
+         * values straight to a segment, so they must write them in index
+         * order, each at most once; values they skip keep their previous
+         * contents.
+         */
+        public boolean packedStorage;
+
+        /**
+         * Size after which a new segment file is started, when using
+         * {@link #packedStorage}.
+         */
+        public long segmentSize = 4 * 1024 * 1024;
+
+        /**
+         * Let {@link #get} return a snapshot of an entry that is still being
+         * created. Its streams return the bytes as the editor writes them,
+         * block until more are written and end once the editor closes the
+         * value's stream or commits; they fail if the edit is aborted.
+         */
+        public boolean readWhileWrite;
+
+        /**
+         * Longest time in milliseconds a stream of an entry still being
+         * created waits for the editor to write more, when using
+         * {@link #readWhileWrite}. The read then fails with an
+         * {@link java.io.InterruptedIOException}, so that a stalled editor
+         * doesn't hold its readers forever. 0 waits indefinitely.
+         */
+        public long pendingReadTimeoutMillis = 30 * 1000;
+
+        /**
+         * When journal records are flushed to the file system. Modes other
+         * than {@link Durability#PER_EDIT} require {@link #binaryJournal}.
+         */
+        public Durability durability = Durability.PER_EDIT;
+
+        /**
+         * Longest time in milliseconds a journal record waits for a flush,
+         * when using {@link Durability#GROUP_COMMIT}.
+         */
+        public long groupCommitDelayMillis = 100;
+
+        /**
+         * Number of edits started or completed after which the journal is
+         * flushed without waiting for the delay, when using
+         * {@link Durability#GROUP_COMMIT}.
+         */
+        public int groupCommitBatchSize = 32;
+
+        /**
+         * Fraction of the max size past which the cleanup thread starts
+         * evicting entries. Between 0 and 1, and at least
+         * {@link #lowWatermark}.
+         */
+        public float highWatermark = 1.0f;
+
+        /**
+         * Fraction of the max size the cleanup thread evicts down to once the
+         * high watermark was passed. Leaving room below the high watermark
+         * lets a cache at capacity absorb many commits between trims.
+         */
+        public float lowWatermark = 1.0f;
+
+        /**
+         * How entries are picked for eviction. Policies other than
+         * {@link EvictionPolicy#LRU} require {@link #binaryJournal}.
+         */
+        public EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    }
+
+    /** How the cache picks the entries to evict once it is full. */
+    public enum EvictionPolicy {
+        /** Evict the least recently used entries first. */
+        LRU,
+        /**
+         * GreedyDual-Size-Frequency: evict the entries with the lowest
+         * priority first, where an entry's priority is its access count times
+         * its fetch cost (see {@link Editor#setFetchCost}) divided by its size,
+         * plus the priority of the last evicted entry at the time of its last
+         * access. Large entries that are cheap to fetch again and are rarely
+         * read go first, and entries that stop being read age out.
+         */
+        GDSF
+    }
+
+    /**
+     * When the journal is flushed. Records that were not flushed when the
+     * process dies are lost: the entries they describe are dropped or keep
+     * their previous values on open, and files written for them are deleted.
+     */
+    public enum Durability {
+        /**
+         * Flush the journal every time an edit starts, before any value is
+         * written.
+         */
+        PER_EDIT,
+        /**
+         * Flush the records of concurrent edits together, once
+         * {@link Options#groupCommitBatchSize} edits are pending or
+         * {@link Options#groupCommitDelayMillis} after the first one.
+         */
+        GROUP_COMMIT,
+        /**
+         * Only flush the journal when its buffer is full, on {@link #flush}
+         * and on {@link #close}.
+         */
+        FLUSH_ON_CLOSE
+    }
+
+    /**
+     * How {@link #get} hits are recorded in the journal. The in-memory LRU
+     * order is always exact; these modes only change how much of it survives
+     * a process death.
+     */
+    public enum AccessRecording {
+        /** Append a READ record for every hit. */
+        IMMEDIATE,
+        /**
+         * Remember hits in memory and append one READ record per distinct
+         * entry once {@link Options#accessBatchSize} entries were read, or on
+         * {@link #flush} and {@link #close}. A checkpoint or journal rebuild
+         * captures pending reads without writing them.
+         */
+        BATCHED,
+        /**
+         * Only persist the LRU order on {@link #flush}, {@link #close},
+         * checkpoints and journal rebuilds.
+         */
+        ON_CLOSE
+    }
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -224,20 +517,115 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * When opened with Options.binaryJournal the journal is named "journal.bin"
+     * and holds the same information in binary form. Its header is the magic
+     * number 0x53424a4c, the binary format version, the application's version
+     * and the value count, each as a 4-byte big-endian int. Each record is a
+     * one byte opcode (1 CLEAN, 2 DIRTY, 3 REMOVE, 4 READ) followed by the
+     * 16-byte MD5 digest of the key; CLEAN records are followed by the lengths
+     * of the entry's values as unsigned varints. Entry files are named after the
+     * hex encoding of the digest.
+     *
+     * When Options.checkpointInterval is set, the cache also writes an index
+     * named "journal.index" every time that many journal bytes were appended,
+     * after each rebuild and on close. The index holds the journal length at the
+     * time it was written, the next sequence number and every entry in LRU order
+     * with its flags, sequence number and value lengths. Opening the cache loads
+     * the index and replays only the part of the journal past that length. The
+     * index is deleted before a rebuilt journal replaces the old one, so an
+     * index always describes a prefix of the current journal.
+     *
+     * When opened with Options.packedStorage the binary journal uses format
+     * version 2 and values live in segment files named "segment.0",
+     * "segment.1"... An entry's values are stored back to back in a single
+     * segment; CLEAN records end with the segment number and the offset of the
+     * first value as two more varints. Overwritten and removed values are left
+     * in place, and count towards the size of the cache, until the cleanup
+     * thread compacts their segment by copying its live values to a writable
+     * segment: a segment that is mostly garbage, or while the cache is over
+     * its size, the segments with the most garbage. The index records the
+     * same location for every entry.
+     *
+     * The binary journal has a fifth record, COST (opcode 5), holding the fetch
+     * cost and the access count of an entry as two varints after the digest.
+     * It follows the CLEAN record of a commit that recorded a fetch cost, and
+     * the CLEAN records of rebuilt journals and segment compaction for entries
+     * with a cost or several accesses. Replaying the journal counts one access
+     * per CLEAN and READ record after it. The index
+     * records the fetch cost and access count of every entry, and the GDSF
+     * inflation value.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File indexFile;
+    private final File indexFileTmp;
+    /** Where the cleanup thread writes checkpoints, apart from those written under the lock. */
+    private final File indexFileCleanupTmp;
     private final int appVersion;
     private final long maxSize;
+    /** Size past which the cleanup thread trims the cache. */
+    private final long highWatermarkSize;
+    /** Size the cleanup thread trims the cache down to. */
+    private final long lowWatermarkSize;
     private final int valueCount;
+    private final boolean binaryJournal;
+    private final AccessRecording accessRecording;
+    private final int accessBatchSize;
+    private final long checkpointInterval;
+    private final boolean packedStorage;
+    private final boolean readWhileWrite;
+    private final long pendingReadTimeoutMillis;
+    private final Durability durability;
+    private final EvictionPolicy evictionPolicy;
+    /**
+     * Priority of the last entry evicted by {@link EvictionPolicy#GDSF}, which
+     * entries accessed from then on start from.
+     */
+    private double inflation;
+    private final long groupCommitDelayMillis;
+    private final int groupCommitBatchSize;
+    /** Edits started or completed since the journal was last flushed. */
+    private int unflushedEdits;
+    private boolean groupCommitScheduled;
+    /** Holds entry values when using packed storage, null otherwise. */
+    private final SegmentStore segments;
+    /** True if the journal being replayed records value locations. */
+    private boolean journalPacked;
+    /** True if the binary journal being replayed ends with a partial record. */
+    private boolean journalTruncated;
     private long size = 0;
-    private Writer journalWriter;
+    private JournalWriter journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * The entries of {@link #lruEntries} in eviction order under
+     * {@link EvictionPolicy#GDSF}, or null with other policies. An entry is
+     * added once its priority is first computed.
+     */
+    private final TreeSet<Entry> priorityOrder;
     private int redundantOpCount;
 
+    /**
+     * Entries read since READ records were last written, ordered from least
+     * to most recently read. Unused with {@link AccessRecording#IMMEDIATE}.
+     */
+    private final LinkedHashSet<Entry> pendingReads = new LinkedHashSet<Entry>();
+
+    /** Bytes of READ records that were never written thanks to deferred recording. */
+    private long journalBytesSaved;
+
+    /** Value of journalWriter.bytesWritten() when the last checkpoint was written. */
+    private long checkpointJournalBytes;
+
+    /** Incremented each time the journal is replaced by a rebuilt one. */
+    private long journalGeneration;
+
+    /** True if the cache was opened from an index checkpoint. */
+    private boolean openedFromCheckpoint;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -245,32 +633,113 @@ public final class DiskLruCache implements Closeable {
      */
     private long nextSequenceNumber = 0;
 
+    /** Maximum number of entries evicted per acquisition of the cache lock. */
+    private static final int EVICTION_BATCH_SIZE = 32;
+
     /** This cache uses a single background thread to evict entries. */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            // once past the high watermark, evict down to the low one in
+            // batches, so gets and edits can interleave with a long trim
+            // while the REMOVE records of a batch are written together
+            boolean trim;
+            synchronized (DiskLruCache.this) {
+                trim = diskSize() > highWatermarkSize;
+            }
+            while (trim) {
+                synchronized (DiskLruCache.this) {
+                    if (journalWriter == null) {
+                        return null; // closed
+                    }
+                    // evicted values stay on disk as garbage until their
+                    // segment is compacted below; only garbage compaction
+                    // cannot reach yet has to be made up for by evicting
+                    long targetSize = lowWatermarkSize - unreclaimableGarbage();
+                    if (size <= targetSize || evictBatch(targetSize, EVICTION_BATCH_SIZE) == 0) {
+                        break;
+                    }
+                }
+            }
+            if (packedStorage) {
+                compactSegments(trim);
+            }
+
+            boolean rebuild;
+            boolean checkpoint;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                rebuild = journalRebuildRequired();
+                checkpoint = !rebuild && checkpointRequired();
+            }
+            if (rebuild) {
+                rebuildJournalConcurrently();
+            } else if (checkpoint) {
+                writeCheckpointConcurrently();
+            }
+            return null;
+        }
+    };
+
+    /** Schedules group commits for all caches; flushing only takes a moment. */
+    private static ScheduledExecutorService groupCommitExecutor;
+
+    private static synchronized ScheduledExecutorService groupCommitExecutor() {
+        if (groupCommitExecutor == null) {
+            groupCommitExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DiskLruCache group commit");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return groupCommitExecutor;
+    }
+
+    private final Callable<Void> groupCommitCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                groupCommitScheduled = false;
+                if (journalWriter == null) {
+                    return null; // closed
                 }
+                flushJournal();
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, Options options) {
         this.directory = directory;
         this.appVersion = appVersion;
-        this.journalFile = new File(directory, JOURNAL_FILE);
-        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.binaryJournal = options.binaryJournal;
+        this.priorityOrder = options.evictionPolicy == EvictionPolicy.GDSF
+                ? new TreeSet<Entry>(PRIORITY_ORDER) : null;
+        this.accessRecording = options.accessRecording;
+        this.accessBatchSize = options.accessBatchSize;
+        this.checkpointInterval = options.checkpointInterval;
+        this.packedStorage = options.packedStorage;
+        this.readWhileWrite = options.readWhileWrite;
+        this.pendingReadTimeoutMillis = options.pendingReadTimeoutMillis;
+        this.durability = options.durability;
+        this.evictionPolicy = options.evictionPolicy;
+        this.groupCommitDelayMillis = options.groupCommitDelayMillis;
+        this.groupCommitBatchSize = options.groupCommitBatchSize;
+        this.segments = packedStorage ? new SegmentStore(directory, options.segmentSize) : null;
+        this.journalPacked = packedStorage;
+        this.journalFile = new File(directory, binaryJournal ? BINARY_JOURNAL_FILE : JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, binaryJournal ? BINARY_JOURNAL_FILE_TMP : JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.indexFileTmp = new File(directory, INDEX_FILE_TMP);
+        this.indexFileCleanupTmp = new File(directory, INDEX_FILE_CLEANUP_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.highWatermarkSize = (long) (maxSize * (double) options.highWatermark);
+        this.lowWatermarkSize = (long) (maxSize * (double) options.lowWatermark);
     }
 
     /**
@@ -285,50 +754,349 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param options settings for the opened cache
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (options.accessBatchSize <= 0) {
+            throw new IllegalArgumentException("accessBatchSize <= 0");
+        }
+        if (options.checkpointInterval < 0) {
+            throw new IllegalArgumentException("checkpointInterval < 0");
+        }
+        if (options.packedStorage && !options.binaryJournal) {
+            throw new IllegalArgumentException("packedStorage requires binaryJournal");
+        }
+        if (options.segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize <= 0");
+        }
+        if (options.pendingReadTimeoutMillis < 0) {
+            throw new IllegalArgumentException("pendingReadTimeoutMillis < 0");
+        }
+        if (options.durability != Durability.PER_EDIT && !options.binaryJournal) {
+            throw new IllegalArgumentException(options.durability + " requires binaryJournal");
+        }
+        if (options.groupCommitDelayMillis <= 0) {
+            throw new IllegalArgumentException("groupCommitDelayMillis <= 0");
+        }
+        if (options.groupCommitBatchSize <= 0) {
+            throw new IllegalArgumentException("groupCommitBatchSize <= 0");
+        }
+        if (options.evictionPolicy != EvictionPolicy.LRU && !options.binaryJournal) {
+            throw new IllegalArgumentException(options.evictionPolicy + " requires binaryJournal");
+        }
+        if (!(options.lowWatermark > 0 && options.lowWatermark <= options.highWatermark
+                && options.highWatermark <= 1)) {
+            throw new IllegalArgumentException("watermarks must satisfy 0 < low <= high <= 1");
+        }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                long journalOffset = cache.readCheckpoint();
+                if (cache.binaryJournal) {
+                    cache.readBinaryJournal(journalOffset);
+                } else {
+                    cache.readJournal(cache.journalFile, journalOffset);
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true));
+                cache.deleteOrphanFiles();
+                if (cache.packedStorage && !cache.journalPacked) {
+                    cache.importValueFiles();
+                } else if (cache.openSegments() || cache.journalTruncated) {
+                    // forget entries whose segment is gone; records appended
+                    // after a partial one would be misread on the next open
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = cache.newJournalWriter(new FileOutputStream(cache.journalFile, true));
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
-                System.out.println("DiskLruCache " + directory + " is corrupt: "
-                        + journalIsCorrupt.getMessage() + ", removing");
+                // start over with an empty cache
+                cache.delete();
+            }
+        } else if (cache.binaryJournal && new File(directory, JOURNAL_FILE).exists()) {
+            try {
+                cache.migrateTextJournal();
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                // the text journal is unreadable too; start over as above
                 cache.delete();
             }
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        cache.openSegments();
         cache.rebuildJournal();
         return cache;
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile));
+    /**
+     * Replays the text journal left by a cache opened without a binary
+     * journal, renames every entry's files after its key digest and writes the
+     * equivalent binary journal.
+     */
+    private void migrateTextJournal() throws IOException {
+        File textJournalFile = new File(directory, JOURNAL_FILE);
+        readJournal(textJournalFile, 0);
+        deleteIfExists(new File(directory, JOURNAL_FILE_TMP));
+        processJournal();
+
+        Entry[] textEntries = lruEntries.values().toArray(new Entry[lruEntries.size()]);
+        lruEntries.clear();
+        if (priorityOrder != null) {
+            priorityOrder.clear();
+        }
+        for (Entry textEntry : textEntries) {
+            Entry entry = new Entry(entryName(textEntry.key));
+            System.arraycopy(textEntry.lengths, 0, entry.lengths, 0, valueCount);
+            entry.readable = true;
+            for (int i = 0; i < valueCount; i++) {
+                if (!textEntry.getCleanFile(i).renameTo(entry.getCleanFile(i))) {
+                    throw new IOException("failed to rename " + textEntry.getCleanFile(i));
+                }
+            }
+            lruEntries.put(entry.key, entry);
+            updatePriority(entry);
+        }
+
+        if (packedStorage) {
+            importValueFiles();
+        } else {
+            rebuildJournal();
+        }
+        deleteIfExists(textJournalFile);
+    }
+
+    /**
+     * Copies the values of a cache stored one file per value into segments,
+     * writes a packed journal and deletes the value files. Entries whose files
+     * are missing are dropped.
+     */
+    private void importValueFiles() throws IOException {
+        segments.open();
+        List<Entry> imported = new ArrayList<Entry>(lruEntries.values());
+        for (Entry entry : imported) {
+            SegmentStore.Appender appender = segments.beginAppend();
+            entry.segment = appender.segmentId();
+            entry.offset = appender.position();
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    long length = appender.appendFile(entry.getCleanFile(i));
+                    size += length - entry.lengths[i];
+                    entry.lengths[i] = length;
+                }
+                segments.finishAppend(appender);
+            } catch (FileNotFoundException e) {
+                segments.abortAppend(appender);
+                size -= entry.totalLength();
+                lruEntries.remove(entry.key);
+                removeFromPriorityOrder(entry);
+            } catch (IOException e) {
+                segments.abortAppend(appender);
+                throw e;
+            }
+        }
+
+        rebuildJournal();
+        for (Entry entry : imported) {
+            for (int i = 0; i < valueCount; i++) {
+                entry.getCleanFile(i).delete();
+            }
+        }
+    }
+
+    /**
+     * Opens the segment store when using packed storage and drops entries
+     * whose segment file has been deleted. Returns true if entries were
+     * dropped.
+     */
+    private boolean openSegments() throws IOException {
+        if (!packedStorage) {
+            return false;
+        }
+        segments.open();
+        boolean dropped = false;
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            long length = entry.totalLength();
+            if (length > 0 && !segments.hasSegment(entry.segment)) {
+                size -= length;
+                i.remove();
+                removeFromPriorityOrder(entry);
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Loads the index checkpoint if there is a usable one and returns the
+     * journal offset replay should start from, or 0 to replay the whole
+     * journal.
+     */
+    private long readCheckpoint() {
+        if (checkpointInterval == 0 || !indexFile.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
         try {
-            String magic = /*Streams.*/readAsciiLine(in);
-            String version = /*Streams.*/readAsciiLine(in);
-            String appVersionString = /*Streams.*/readAsciiLine(in);
-            String valueCountString = /*Streams.*/readAsciiLine(in);
-            String blank = /*Streams.*/readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            int magic = in.readInt();
+            int version = in.readInt();
+            int appVersionValue = in.readInt();
+            int valueCountValue = in.readInt();
+            boolean binary = in.readBoolean();
+            boolean packed = in.readBoolean();
+            long journalLength = in.readLong();
+            if (magic != INDEX_MAGIC
+                    || version != INDEX_VERSION_3
+                    || appVersionValue != appVersion
+                    || valueCountValue != valueCount
+                    || binary != binaryJournal
+                    || packed != packedStorage
+                    || journalLength <= 0
+                    || journalLength > journalFile.length()) {
+                throw new IOException("unexpected index header");
+            }
+            long sequenceNumber = in.readLong();
+            double inflationValue = in.readDouble();
+            int entryCount = in.readInt();
+            for (int n = 0; n < entryCount; n++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.readable = in.readBoolean();
+                if (in.readBoolean()) {
+                    entry.currentEditor = new Editor(entry);
+                }
+                entry.sequenceNumber = readVarint(in);
+                for (int i = 0; i < valueCount; i++) {
+                    entry.lengths[i] = readVarint(in);
+                }
+                if (packedStorage) {
+                    entry.segment = readVarint(in);
+                    entry.offset = readVarint(in);
+                }
+                entry.fetchCost = readVarint(in);
+                entry.accessCount = (int) readVarint(in);
+                lruEntries.put(entry.key, entry);
+            }
+            nextSequenceNumber = sequenceNumber;
+            inflation = inflationValue;
+            openedFromCheckpoint = true;
+            return journalLength;
+        } catch (IOException indexIsUnusable) {
+            // fall back to replaying the whole journal
+            lruEntries.clear();
+            inflation = 0;
+            indexFile.delete();
+            return 0;
+        } finally {
+            /*IoUtils.*/closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the index checkpoint describing every entry and the current
+     * journal length, replacing the previous one.
+     */
+    private void writeCheckpoint() throws IOException {
+        takeCheckpoint().writeTo(indexFileTmp);
+        indexFileTmp.renameTo(indexFile);
+    }
+
+    /**
+     * Writes a checkpoint like {@link #writeCheckpoint} without holding the
+     * cache lock while the index is written. The entries are copied under
+     * the lock; the index is renamed into place in a short critical section,
+     * unless the cache was closed or its journal replaced meanwhile. Only
+     * called from the cleanup thread.
+     */
+    private void writeCheckpointConcurrently() throws IOException {
+        Checkpoint checkpoint;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            checkpoint = takeCheckpoint();
+        }
+
+        boolean renamed = false;
+        try {
+            checkpoint.writeTo(indexFileCleanupTmp);
+            synchronized (this) {
+                // the index must describe a prefix of the current journal
+                if (journalWriter != null && journalGeneration == checkpoint.journalGeneration
+                        && journalFile.length() >= checkpoint.journalLength) {
+                    renamed = indexFileCleanupTmp.renameTo(indexFile);
+                }
+            }
+        } finally {
+            if (!renamed) {
+                indexFileCleanupTmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies the state an index checkpoint describes, so that it can be
+     * written without holding the cache lock.
+     */
+    private Checkpoint takeCheckpoint() throws IOException {
+        journalWriter.flush();
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.size());
+        for (Entry entry : lruEntries.values()) {
+            entries.add(entry.copy());
+        }
+        Checkpoint checkpoint = new Checkpoint(journalFile.length(), entries);
+
+        // the index captures the LRU order of entries whose reads were pending
+        pendingReads.clear();
+        checkpointJournalBytes = journalWriter.bytesWritten();
+        return checkpoint;
+    }
+
+    private boolean checkpointRequired() {
+        return checkpointInterval > 0
+                && journalWriter.bytesWritten() - checkpointJournalBytes >= checkpointInterval;
+    }
+
+    /**
+     * Returns true if this cache was opened from an index checkpoint rather
+     * than by replaying its whole journal.
+     */
+    public boolean openedFromCheckpoint() {
+        return openedFromCheckpoint;
+    }
+
+    private void readJournal(File file, long offset) throws IOException {
+        journalPacked = false;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (offset > 0) {
+                skipFully(in, offset);
+            } else {
+                readJournalHeader(in);
             }
 
             while (true) {
@@ -343,6 +1111,118 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private void readJournalHeader(InputStream in) throws IOException {
+        String magic = /*Streams.*/readAsciiLine(in);
+        String version = /*Streams.*/readAsciiLine(in);
+        String appVersionString = /*Streams.*/readAsciiLine(in);
+        String valueCountString = /*Streams.*/readAsciiLine(in);
+        String blank = /*Streams.*/readAsciiLine(in);
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !Integer.toString(valueCount).equals(valueCountString)
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+        }
+    }
+
+    private void readBinaryJournal(long offset) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(journalFile));
+        try {
+            if (offset > 0) {
+                skipFully(in, offset);
+            } else {
+                readBinaryJournalHeader(in);
+            }
+
+            byte[] digest = new byte[KEY_DIGEST_LENGTH];
+            long[] lengths = new long[valueCount];
+            while (true) {
+                try {
+                    int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+                    readFully(in, digest);
+                    long segment = 0;
+                    long valueOffset = 0;
+                    if (op == OP_COST) {
+                        // the cost and access count stand in for the lengths
+                        lengths[0] = readVarint(in);
+                        segment = readVarint(in);
+                    } else if (op == OP_CLEAN) {
+                        for (int i = 0; i < valueCount; i++) {
+                            lengths[i] = readVarint(in);
+                        }
+                        if (journalPacked) {
+                            segment = readVarint(in);
+                            valueOffset = readVarint(in);
+                        }
+                    }
+                    readJournalRecord(op, digest, lengths, segment, valueOffset);
+                } catch (EOFException endOfJournal) {
+                    // a truncated record was being written when the process died
+                    journalTruncated = true;
+                    break;
+                }
+            }
+        } finally {
+            /*IoUtils.*/closeQuietly(in);
+        }
+    }
+
+    private void readBinaryJournalHeader(InputStream in) throws IOException {
+        int magic = readInt(in);
+        int version = readInt(in);
+        int appVersionValue = readInt(in);
+        int valueCountValue = readInt(in);
+        // a file-per-value journal can be imported into packed storage, but
+        // not the other way around
+        if (magic != BINARY_MAGIC
+                || (version != BINARY_VERSION_1 && (version != BINARY_VERSION_PACKED || !packedStorage))
+                || appVersionValue != appVersion
+                || valueCountValue != valueCount) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + appVersionValue + ", " + valueCountValue + "]");
+        }
+        journalPacked = version == BINARY_VERSION_PACKED;
+    }
+
+    private void readJournalRecord(int op, byte[] digest, long[] lengths, long segment, long offset)
+            throws IOException {
+        String key = toHex(digest);
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            entry.segment = segment;
+            entry.offset = offset;
+            entry.accessCount++;
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (op == OP_READ) {
+            // the LRU order was already updated by calling lruEntries.get()
+            entry.accessCount++;
+        } else if (op == OP_COST) {
+            entry.fetchCost = lengths[0];
+            entry.accessCount = (int) segment;
+        } else {
+            throw new IOException("unexpected journal opcode: " + op);
+        }
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -365,36 +1245,140 @@ public final class DiskLruCache implements Closeable {
             entry.readable = true;
             entry.currentEditor = null;
             entry.setLengths(/*Arrays.*/copyOfRange(parts, 2, parts.length));
+            entry.accessCount++;
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // the LRU order was already updated by calling lruEntries.get()
+            entry.accessCount++;
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
     }
 
     /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Computes the initial size and collects garbage as a part of opening the
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        deleteIfExists(indexFileTmp);
+        deleteIfExists(indexFileCleanupTmp);
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor == null) {
+                for (int t = 0; t < valueCount; t++) {
+                    size += entry.lengths[t];
+                }
+                updatePriority(entry);
+                if (journalPacked) {
+                    segments.addLive(entry.segment, entry.totalLength());
+                }
+            } else {
+                entry.currentEditor = null;
+                if (!journalPacked) {
+                    for (int t = 0; t < valueCount; t++) {
+                        deleteIfExists(entry.getCleanFile(t));
+                        deleteIfExists(entry.getDirtyFile(t));
+                    }
+                }
+                // a packed entry's values become garbage in their segment
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes value files that no entry refers to. Without a flush per edit,
+     * the process may die after creating an entry's files but before its
+     * records reach the journal. Only files named like the entries of a
+     * binary journal are considered.
+     */
+    private void deleteOrphanFiles() {
+        if (durability == Durability.PER_EDIT || packedStorage) {
+            return; // packed values are reclaimed with their segment
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (dot != 2 * KEY_DIGEST_LENGTH || !isHex(name, dot)) {
+                continue;
+            }
+            if (name.endsWith(".tmp") || !lruEntries.containsKey(name.substring(0, dot))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the files a cache in {@code directory} may have written, without
+     * opening it: its journals, index, segments and value files. Other files
+     * and sub-directories are left alone.
+     */
+    static void deleteCacheFiles(File directory) {
+        File textJournalFile = new File(directory, JOURNAL_FILE);
+        if (textJournalFile.exists()) {
+            deleteTextJournalValueFiles(directory, textJournalFile);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (file.isFile() && (name.startsWith(JOURNAL_FILE)
+                    || name.startsWith(SegmentStore.SEGMENT_FILE_PREFIX)
+                    || (dot == 2 * KEY_DIGEST_LENGTH && isHex(name, dot)))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the value files of the entries a text journal lists, which are
+     * named after their keys rather than digests.
      */
-    private void processJournal() throws IOException {
-        deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
-            if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+    private static void deleteTextJournalValueFiles(File directory, File journalFile) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+            reader.readLine(); // magic
+            reader.readLine(); // version
+            reader.readLine(); // app version
+            int valueCount = Integer.parseInt(reader.readLine());
+            reader.readLine(); // blank
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    continue;
                 }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
+                for (int i = 0; i < valueCount; i++) {
+                    new File(directory, parts[1] + "." + i).delete();
+                    new File(directory, parts[1] + "." + i + ".tmp").delete();
                 }
-                i.remove();
+            }
+        } catch (IOException e) {
+            // delete what was listed before the unreadable part
+        } catch (NumberFormatException e) {
+            // not a journal
+        } finally {
+            /*IoUtils.*/closeQuietly(reader);
+        }
+    }
+
+    private static boolean isHex(String string, int length) {
+        for (int i = 0; i < length; i++) {
+            if (Character.digit(string.charAt(i), 16) == -1) {
+                return false;
             }
         }
+        return true;
     }
 
     /**
@@ -406,28 +1390,219 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        JournalWriter writer = newJournal(journalFileTmp);
+
+        // the rebuilt journal lists entries in LRU order, which covers any
+        // reads that were still pending
+        pendingReads.clear();
 
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                writer.writeDirty(entry);
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writeCleanWithCost(writer, entry);
             }
         }
 
         writer.close();
+        // an index describes a prefix of the old journal; drop it before the
+        // old journal goes away
+        deleteIfExists(indexFile);
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+        journalWriter = newJournalWriter(new FileOutputStream(journalFile, true));
+        journalGeneration++;
+        checkpointJournalBytes = 0;
+        if (checkpointInterval > 0) {
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * Writes a CLEAN record of {@code entry} that does not stand for an
+     * access, followed by a COST record if the entry has a fetch cost or was
+     * accessed more than once. The replayed CLEAN record counts an access,
+     * which the COST record corrects.
+     */
+    private void writeCleanWithCost(JournalWriter writer, Entry entry) throws IOException {
+        writer.writeClean(entry);
+        if (entry.fetchCost > 0 || entry.accessCount > 1) {
+            writer.writeCost(entry);
+        }
+    }
+
+    /**
+     * Rebuilds the journal like {@link #rebuildJournal} without holding the
+     * cache lock while the entries are written. The entry table is copied
+     * under the lock and records appended to the current journal meanwhile are
+     * remembered; they are replayed onto the new journal in the short critical
+     * section that swaps it in. Only called from the cleanup thread.
+     */
+    private void rebuildJournalConcurrently() throws IOException {
+        List<Entry> entries;
+        RecordingJournalWriter recorder;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            entries = new ArrayList<Entry>(lruEntries.size());
+            for (Entry entry : lruEntries.values()) {
+                entries.add(entry.copy());
+            }
+            pendingReads.clear();
+            recorder = new RecordingJournalWriter(journalWriter);
+            journalWriter = recorder;
+        }
+
+        JournalWriter writer = newJournal(journalFileTmp);
+        boolean swapped = false;
+        try {
+            for (Entry entry : entries) {
+                if (entry.currentEditor != null) {
+                    writer.writeDirty(entry);
+                } else {
+                    writeCleanWithCost(writer, entry);
+                }
+            }
+
+            synchronized (this) {
+                if (journalWriter != recorder) {
+                    return; // closed while rebuilding
+                }
+                recorder.replay(writer);
+                writer.close();
+                recorder.delegate.close();
+                deleteIfExists(indexFile);
+                journalFileTmp.renameTo(journalFile);
+                journalWriter = newJournalWriter(new FileOutputStream(journalFile, true));
+                journalGeneration++;
+                swapped = true;
+                redundantOpCount = recorder.ops.size();
+                checkpointJournalBytes = 0;
+            }
+        } finally {
+            if (!swapped) {
+                /*IoUtils.*/closeQuietly(writer);
+                journalFileTmp.delete();
+                synchronized (this) {
+                    if (journalWriter == recorder) {
+                        journalWriter = recorder.delegate;
+                    }
+                }
+            }
+        }
+        if (checkpointInterval > 0) {
+            writeCheckpointConcurrently();
+        }
+    }
+
+    /**
+     * Moves the live values out of segments that are mostly garbage, one
+     * entry per lock acquisition. If {@code trimming}, also compacts the
+     * segments with the most garbage until the cache is back under its low
+     * watermark. Only called from the cleanup thread.
+     */
+    private void compactSegments(boolean trimming) throws IOException {
+        while (true) {
+            long id;
+            List<Entry> entries = new ArrayList<Entry>();
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed
+                }
+                id = segments.segmentToCompact(trimming && diskSize() > lowWatermarkSize);
+                if (id < 0) {
+                    return;
+                }
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.segment == id) {
+                        entries.add(entry);
+                    }
+                }
+            }
+
+            for (Entry entry : entries) {
+                synchronized (this) {
+                    if (journalWriter == null) {
+                        return; // closed
+                    }
+                    relocate(entry, id);
+                }
+            }
+
+            synchronized (this) {
+                if (journalWriter != null && segments.hasSegment(id)) {
+                    return; // values could not be moved; retry on the next cleanup
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the values of {@code entry} from segment {@code id} to the
+     * active segment, unless the entry was overwritten or removed since it was
+     * picked for compaction.
+     */
+    private void relocate(Entry entry, long id) throws IOException {
+        long length = entry.totalLength();
+        if (entry.segment != id || length == 0) {
+            return;
+        }
+
+        SegmentStore.Appender appender = segments.beginAppend();
+        long offset = appender.position();
+        try {
+            appender.appendCopy(id, entry.offset, length);
+        } catch (IOException e) {
+            segments.abortAppend(appender);
+            throw e;
+        }
+        segments.finishAppend(appender);
+        entry.segment = appender.segmentId();
+        entry.offset = offset;
+
+        redundantOpCount++;
+        writeCleanWithCost(journalWriter, entry);
+        if (entry.currentEditor != null) {
+            journalWriter.writeDirty(entry); // still being edited
+        }
+        // the old segment may be deleted below; the journal must not point
+        // there anymore if the process dies
+        journalWriter.flush();
+        segments.release(id, length);
+    }
+
+    private JournalWriter newJournalWriter(OutputStream out) {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        if (binaryJournal) {
+            return new BinaryJournalWriter(counter);
+        }
+        return new TextJournalWriter(counter);
+    }
+
+    /** Creates a journal in {@code file} and returns its writer, the header written. */
+    private JournalWriter newJournal(File file) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+        if (binaryJournal) {
+            BinaryJournalWriter writer = new BinaryJournalWriter(counter);
+            writer.writeHeader();
+            return writer;
+        }
+        TextJournalWriter writer = new TextJournalWriter(counter);
+        writer.writeHeader();
+        return writer;
+    }
+
+    /**
+     * Returns the name of the entry holding {@code key}: the key itself for a
+     * text journal, or the hex encoded digest of the key for a binary journal.
+     * Digesting allocates, so callers compute the name before taking the
+     * cache lock.
+     */
+    private String entryName(String key) {
+        if (!binaryJournal) {
+            return key;
+        }
+        return toHex(KEY_DIGEST.get().digest(key.getBytes(UTF_8)));
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -448,15 +1623,64 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        String name = entryName(key);
+        synchronized (this) {
+            checkNotClosed();
+            return getLocked(key, name);
+        }
+    }
+
+    /**
+     * Returns snapshots of the entries named {@code keys} that exist and are
+     * readable, in the order of {@code keys}, taking the cache lock once for
+     * all of them. A key listed several times gets a single snapshot.
+     * Returned entries are moved to the head of the LRU queue. The caller
+     * must close every returned snapshot.
+     */
+    public Map<String, Snapshot> getAll(List<String> keys) throws IOException {
+        Map<String, String> names = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            if (!names.containsKey(key)) {
+                validateKey(key);
+                names.put(key, entryName(key));
+            }
+        }
+        Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>();
+        synchronized (this) {
+            checkNotClosed();
+            try {
+                for (Map.Entry<String, String> name : names.entrySet()) {
+                    Snapshot snapshot = getLocked(name.getKey(), name.getValue());
+                    if (snapshot != null) {
+                        snapshots.put(name.getKey(), snapshot);
+                    }
+                }
+            } catch (IOException e) {
+                closeAll(snapshots.values());
+                throw e;
+            }
+        }
+        return snapshots;
+    }
+
+    static void closeAll(Iterable<Snapshot> snapshots) {
+        for (Snapshot snapshot : snapshots) {
+            snapshot.close();
+        }
+    }
+
+    private Snapshot getLocked(String key, String name) throws IOException {
+        Entry entry = lruEntries.get(name);
         if (entry == null) {
             return null;
         }
 
         if (!entry.readable) {
+            if (readWhileWrite && entry.currentEditor != null) {
+                return entry.currentEditor.attach(key);
+            }
             return null;
         }
 
@@ -466,22 +1690,102 @@ public final class DiskLruCache implements Closeable {
          * from different edits.
          */
         InputStream[] ins = new InputStream[valueCount];
+        FileChannel[] channels = new FileChannel[valueCount];
+        long[] offsets = new long[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                FileInputStream file;
+                if (packedStorage) {
+                    file = segments.openSegment(entry.segment);
+                    offsets[i] = entry.valueOffset(i);
+                    ins[i] = SegmentStore.window(file, offsets[i], entry.lengths[i]);
+                } else {
+                    file = new FileInputStream(entry.getCleanFile(i));
+                    ins[i] = file;
+                }
+                channels[i] = file.getChannel();
             }
         } catch (FileNotFoundException e) {
             // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                /*IoUtils.*/closeQuietly(in);
+            }
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+        recordRead(entry);
+
+        return new Snapshot(key, entry.sequenceNumber, ins, channels, offsets, entry.lengths.clone());
+    }
+
+    private void recordRead(Entry entry) throws IOException {
+        entry.accessCount++;
+        updatePriority(entry);
+        if (accessRecording == AccessRecording.IMMEDIATE) {
+            redundantOpCount++;
+            journalWriter.writeRead(entry);
+            if (journalRebuildRequired() || checkpointRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+            return;
+        }
+
+        // re-adding moves the entry to the most recently read position
+        pendingReads.remove(entry);
+        pendingReads.add(entry);
+        journalBytesSaved += journalWriter.readRecordLength(entry);
+        if (accessRecording == AccessRecording.BATCHED && pendingReads.size() >= accessBatchSize) {
+            writePendingReads();
+        }
+    }
+
+    /**
+     * Recomputes the GDSF priority of {@code entry} after an access. Entries
+     * without a recorded fetch cost count as costing 1.
+     */
+    private void updatePriority(Entry entry) {
+        if (evictionPolicy != EvictionPolicy.GDSF) {
+            return;
+        }
+        long cost = Math.max(entry.fetchCost, 1);
+        long length = Math.max(entry.totalLength(), 1);
+        // reposition the entry: the order must not change while it is queued
+        priorityOrder.remove(entry);
+        entry.priority = inflation + (double) entry.accessCount * cost / length;
+        priorityOrder.add(entry);
+    }
+
+    private void removeFromPriorityOrder(Entry entry) {
+        if (priorityOrder != null) {
+            priorityOrder.remove(entry);
+        }
+    }
+
+    /**
+     * Appends one READ record per entry read since the last call. Entries
+     * read several times in between cost a single record.
+     */
+    private void writePendingReads() throws IOException {
+        if (pendingReads.isEmpty()) {
+            return;
+        }
+        for (Entry entry : pendingReads) {
+            journalWriter.writeRead(entry);
+            journalBytesSaved -= journalWriter.readRecordLength(entry);
+            redundantOpCount++;
+        }
+        pendingReads.clear();
+        if (journalRebuildRequired() || checkpointRequired()) {
             executorService.submit(cleanupCallable);
         }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Returns the number of journal bytes that deferred access recording
+     * avoided writing so far.
+     */
+    public synchronized long journalBytesSaved() {
+        return journalBytesSaved;
     }
 
     /**
@@ -492,17 +1796,21 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        return editEntry(entryName(key), expectedSequenceNumber);
+    }
+
+    private synchronized Editor editEntry(String name, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        Entry entry = lruEntries.get(name);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
                 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
             return null; // snapshot is stale
         }
         if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
+            entry = new Entry(name);
+            lruEntries.put(name, entry);
         } else if (entry.currentEditor != null) {
             return null; // another edit is in progress
         }
@@ -510,12 +1818,41 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        journalWriter.writeDirty(entry);
+        if (durability == Durability.PER_EDIT || (entry.readable && !packedStorage)) {
+            // flush the journal before creating files to prevent file leaks.
+            // Overwriting files of a published entry always needs the DIRTY
+            // record, or a crash could leave new values under old lengths.
+            flushJournal();
+        } else {
+            // files of an entry the journal doesn't know yet are deleted
+            // as orphans on open
+            editPending();
+        }
         return editor;
     }
 
+    private void flushJournal() throws IOException {
+        journalWriter.flush();
+        unflushedEdits = 0;
+    }
+
+    /**
+     * Counts an edit whose records may not be flushed yet, and flushes or
+     * schedules a flush according to the durability mode.
+     */
+    private void editPending() throws IOException {
+        if (durability != Durability.GROUP_COMMIT) {
+            return;
+        }
+        if (++unflushedEdits >= groupCommitBatchSize) {
+            flushJournal();
+        } else if (!groupCommitScheduled) {
+            groupCommitScheduled = true;
+            groupCommitExecutor().schedule(groupCommitCallable, groupCommitDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * Returns the directory where this cache stores its data.
      */
@@ -534,10 +1871,21 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
-     * deletion is pending.
+     * deletion is pending. With packed storage, this includes overwritten and
+     * removed values that compaction has not reclaimed yet.
      */
     public synchronized long size() {
-        return size;
+        return diskSize();
+    }
+
+    /** Returns the bytes of live values, plus garbage with packed storage. */
+    private long diskSize() {
+        return packedStorage ? size + segments.garbage() : size;
+    }
+
+    /** Returns the garbage that compaction cannot reclaim for now. */
+    private long unreclaimableGarbage() {
+        return packedStorage ? segments.unreclaimableGarbage() : 0;
     }
 
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
@@ -546,50 +1894,107 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalStateException();
         }
 
+        if (packedStorage) {
+            editor.finishOpenValue();
+        }
+
         // if this edit is creating the entry for the first time, every index must have a value
         if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
+                if (!editor.hasValue(i)) {
                     editor.abort();
                     throw new IllegalStateException("edit didn't create file " + i);
                 }
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        if (packedStorage) {
+            // a failed append leaves the previous values in place
+            success = finishValues(editor, success);
+        } else {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        editor.renameValue(i, dirty, clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
         }
 
         redundantOpCount++;
         entry.currentEditor = null;
-        if (entry.readable | success) {
+        editor.finishPendingValues(success);
+        if (entry.readable && !success) {
+            // the previous values stay
+            writeCleanWithCost(journalWriter, entry);
+        } else if (success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            journalWriter.writeClean(entry);
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.accessCount++;
+            if (editor.fetchCost > 0) {
+                entry.fetchCost = editor.fetchCost;
+                journalWriter.writeCost(entry);
             }
+            updatePriority(entry);
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            removeFromPriorityOrder(entry);
+            pendingReads.remove(entry);
+            journalWriter.writeRemove(entry);
         }
+        editPending();
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (diskSize() > highWatermarkSize || journalRebuildRequired() || checkpointRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Ends the appends of a packed edit. On success, copies the previous
+     * values the editor did not write after the ones it wrote and points the
+     * entry at them. Returns false if the values could not be written, in
+     * which case they are garbage and the entry keeps its previous values.
+     */
+    private boolean finishValues(Editor editor, boolean success) {
+        Entry entry = editor.entry;
+        SegmentStore.Appender appender = editor.appender;
+        if (appender == null) {
+            return success; // nothing written: the values stay where they are
+        }
+        if (success) {
+            try {
+                editor.copyPreviousValues(valueCount);
+            } catch (IOException e) {
+                success = false;
+            }
+        }
+        if (!success) {
+            segments.abortAppend(appender);
+            return false;
+        }
+        segments.finishAppend(appender);
+
+        if (entry.readable) {
+            segments.release(entry.segment, entry.totalLength());
+        }
+        entry.segment = appender.segmentId();
+        entry.offset = editor.offset;
+        for (int i = 0; i < valueCount; i++) {
+            size = size - entry.lengths[i] + editor.lengths[i];
+            entry.lengths[i] = editor.lengths[i];
+        }
+        return true;
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
@@ -606,32 +2011,49 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
-        checkNotClosed();
+    public boolean remove(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+        String name = entryName(key);
+        synchronized (this) {
+            checkNotClosed();
+            return removeEntry(lruEntries.get(name));
+        }
+    }
+
+    private synchronized boolean removeEntry(Entry entry) throws IOException {
+        if (entry == null || entry.currentEditor != null || lruEntries.get(entry.key) != entry) {
             return false;
         }
+        deleteEntry(entry);
+
+        if (journalRebuildRequired() || checkpointRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        return true;
+    }
 
+    /** Deletes the values of {@code entry}, which must not be being edited. */
+    private void deleteEntry(Entry entry) throws IOException {
+        if (packedStorage) {
+            segments.release(entry.segment, entry.totalLength());
+        }
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            if (!packedStorage) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
             }
             size -= entry.lengths[i];
             entry.lengths[i] = 0;
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
-
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
-
-        return true;
+        journalWriter.writeRemove(entry);
+        lruEntries.remove(entry.key);
+        removeFromPriorityOrder(entry);
+        pendingReads.remove(entry);
     }
 
     /**
@@ -653,7 +2075,8 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        writePendingReads();
+        flushJournal();
     }
 
     /**
@@ -669,17 +2092,60 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
+        if (checkpointInterval > 0) {
+            writeCheckpoint();
+        } else {
+            writePendingReads();
+        }
         journalWriter.close();
         journalWriter = null;
+        if (packedStorage) {
+            segments.close();
+        }
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();//lruEntries.eldest();
-            remove(toEvict.getKey());
+        evictBatch(maxSize - unreclaimableGarbage(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes up to {@code maxCount} of the entries that are not being edited,
+     * in eviction policy order, stopping once the cache fits in
+     * {@code targetSize}. Returns the number of entries removed.
+     */
+    private int evictBatch(long targetSize, int maxCount) throws IOException {
+        Iterable<Entry> candidates = priorityOrder != null ? priorityOrder : lruEntries.values();
+        List<Entry> toEvict = new ArrayList<Entry>();
+        long remaining = size;
+        for (Entry entry : candidates) {
+            if (remaining <= targetSize || toEvict.size() == maxCount) {
+                break;
+            }
+            if (entry.currentEditor == null) {
+                toEvict.add(entry);
+                remaining -= entry.totalLength();
+            }
+        }
+        for (Entry entry : toEvict) {
+            if (evictionPolicy == EvictionPolicy.GDSF) {
+                inflation = Math.max(inflation, entry.priority);
+            }
+            deleteEntry(entry);
         }
+        return toEvict.size();
     }
 
+    /**
+     * Orders entries from lowest to highest GDSF priority, then by name so
+     * that distinct entries never compare equal.
+     */
+    private static final Comparator<Entry> PRIORITY_ORDER = new Comparator<Entry>() {
+        @Override public int compare(Entry a, Entry b) {
+            int result = Double.compare(a.priority, b.priority);
+            return result != 0 ? result : a.key.compareTo(b.key);
+        }
+    };
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -687,6 +2153,9 @@ public final class DiskLruCache implements Closeable {
      */
     public void delete() throws IOException {
         close();
+        if (packedStorage) {
+            segments.close(); // in case the cache failed to open
+        }
         /*IoUtils.*/deleteContents(directory);
     }
 
@@ -708,11 +2177,18 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final FileChannel[] channels;
+        private final long[] offsets;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, FileChannel[] channels,
+                long[] offsets, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.channels = channels;
+            this.offsets = offsets;
+            this.lengths = lengths;
         }
 
         /**
@@ -734,8 +2210,57 @@ public final class DiskLruCache implements Closeable {
         /**
          * Returns the string value for {@code index}.
          */
-        public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
+        public String getString(int index) throws IOException {
+            return inputStreamToString(getInputStream(index));
+        }
+
+        /**
+         * Returns true if this snapshot reads an entry that is still being
+         * written. Its streams block until data is written, and its values
+         * cannot be mapped.
+         */
+        public boolean isPending() {
+            return channels == null;
+        }
+
+        /**
+         * Returns the length in bytes of the value for {@code index}, or -1 if
+         * this snapshot is pending.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the channel of the file holding the value for {@code index}.
+         * The value starts at {@link #getOffset} and is {@link #getLength}
+         * bytes long; with packed storage the file holds other values too.
+         * The channel is closed with this snapshot. Returns null if this
+         * snapshot is pending.
+         */
+        public FileChannel getChannel(int index) {
+            return channels[index];
+        }
+
+        /**
+         * Returns the position of the value for {@code index} in the file of
+         * {@link #getChannel}.
+         */
+        public long getOffset(int index) {
+            return offsets[index];
+        }
+
+        /**
+         * Maps the value for {@code index} into memory, read-only. The buffer
+         * stays valid after this snapshot is closed, and after the value is
+         * overwritten or evicted. Mapping does not move the stream returned
+         * by {@link #getInputStream}.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            if (channels == null) {
+                throw new IllegalStateException("snapshot is pending");
+            }
+            return channels[index].map(FileChannel.MapMode.READ_ONLY, offsets[index], lengths[index]);
         }
 
         @Override public void close() {
@@ -750,10 +2275,136 @@ public final class DiskLruCache implements Closeable {
      */
     public final class Editor {
         private final Entry entry;
+        /**
+         * Appends the values of a packed edit to a segment, null until one
+         * is written or without packed storage.
+         */
+        private SegmentStore.Appender appender;
+        /** Offset of the first value of a packed edit in its segment. */
+        private long offset;
+        /** Lengths of the values of a packed edit, once appended. */
+        private final long[] lengths;
+        /** Which values of a packed edit were appended. */
+        private final boolean[] written;
+        /** Index of the next value a packed edit appends. */
+        private int nextIndex;
+        /** The stream of the packed value being appended, or null. */
+        private SegmentValueOutputStream openValue;
+        /** Write progress shared with attached readers, when reading while writing. */
+        private final PendingValue[] pendingValues;
         private boolean hasErrors;
+        private long fetchCost;
 
         private Editor(Entry entry) {
             this.entry = entry;
+            this.lengths = packedStorage ? new long[valueCount] : null;
+            this.written = packedStorage ? new boolean[valueCount] : null;
+            this.pendingValues = readWhileWrite ? new PendingValue[valueCount] : null;
+            if (pendingValues != null) {
+                for (int i = 0; i < valueCount; i++) {
+                    pendingValues[i] = new PendingValue();
+                }
+            }
+        }
+
+        /**
+         * Returns a snapshot whose streams follow the values as this editor
+         * writes them. Called while holding the cache lock.
+         */
+        private Snapshot attach(String key) {
+            InputStream[] ins = new InputStream[valueCount];
+            long[] lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = new PendingValueInputStream(pendingValues[i], pendingReadTimeoutMillis);
+                lengths[i] = -1;
+            }
+            return new Snapshot(key, entry.sequenceNumber, ins, null, new long[valueCount], lengths);
+        }
+
+        /**
+         * Renames a written value to its clean file, so that attached readers
+         * that have not opened it yet find it.
+         */
+        private void renameValue(int index, File dirty, File clean) {
+            if (pendingValues == null) {
+                dirty.renameTo(clean);
+                return;
+            }
+            PendingValue value = pendingValues[index];
+            synchronized (value) {
+                dirty.renameTo(clean);
+                value.file = clean;
+            }
+        }
+
+        /** Ends the streams of attached readers, with an error unless {@code success}. */
+        private void finishPendingValues(boolean success) {
+            if (pendingValues == null) {
+                return;
+            }
+            for (PendingValue value : pendingValues) {
+                synchronized (value) {
+                    if (success) {
+                        value.complete = true;
+                    } else {
+                        value.failed = true;
+                    }
+                    value.notifyAll();
+                }
+            }
+        }
+
+        private boolean hasValue(int index) {
+            return packedStorage ? written[index] : entry.getDirtyFile(index).exists();
+        }
+
+        /**
+         * Starts appending the packed value at {@code index}, after copies
+         * of the previous values this edit skipped. Values are appended back
+         * to back, so they must be written in index order. Called while
+         * holding the cache lock.
+         */
+        private OutputStream newValueOutputStream(int index) throws IOException {
+            finishOpenValue();
+            if (index < nextIndex) {
+                throw new IllegalStateException("packed values must be written once, in index order");
+            }
+            if (appender == null) {
+                appender = segments.beginAppend();
+                offset = appender.position();
+            }
+            copyPreviousValues(index);
+            nextIndex = index + 1;
+            openValue = new SegmentValueOutputStream(index, appender.position());
+            return openValue;
+        }
+
+        /**
+         * Ends the packed value being appended, if any; writing to its stream
+         * fails from now on. Called while holding the cache lock.
+         */
+        private void finishOpenValue() {
+            if (openValue != null) {
+                lengths[openValue.index] = appender.position() - openValue.start;
+                written[openValue.index] = true;
+                openValue.finished = true;
+                openValue = null;
+            }
+        }
+
+        /**
+         * Appends copies of the committed values this edit did not write,
+         * from the next index up to {@code end}. Called while holding the
+         * cache lock.
+         */
+        private void copyPreviousValues(int end) throws IOException {
+            for (; nextIndex < end; nextIndex++) {
+                if (entry.readable) {
+                    appender.appendCopy(entry.segment, entry.valueOffset(nextIndex), entry.lengths[nextIndex]);
+                    lengths[nextIndex] = entry.lengths[nextIndex];
+                    written[nextIndex] = true;
+                }
+            }
         }
 
         /**
@@ -768,7 +2419,7 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return entry.newInputStream(index);
             }
         }
 
@@ -793,8 +2444,38 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                OutputStream out;
+                if (packedStorage) {
+                    out = newValueOutputStream(index);
+                } else {
+                    out = new FileOutputStream(entry.getDirtyFile(index));
+                }
+                if (pendingValues != null) {
+                    out = new PendingValueOutputStream(out, startPendingValue(index));
+                }
+                return new FaultHidingOutputStream(out);
+            }
+        }
+
+        /**
+         * Returns the progress of the value at {@code index}, which is about
+         * to be written from the start. Readers attached to an earlier
+         * attempt at this value fail, since the bytes they read are gone.
+         */
+        private PendingValue startPendingValue(int index) {
+            PendingValue value = pendingValues[index];
+            synchronized (value) {
+                if (!value.started) {
+                    value.started = true;
+                    value.file = packedStorage ? appender.getFile() : entry.getDirtyFile(index);
+                    value.offset = packedStorage ? openValue.start : 0;
+                    return value;
+                }
+                value.failed = true;
+                value.notifyAll();
             }
+            pendingValues[index] = new PendingValue();
+            return startPendingValue(index);
         }
 
         /**
@@ -810,6 +2491,22 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Records what it cost to obtain the values of this edit, for example
+         * the milliseconds spent downloading them, in units of the caller's
+         * choosing. The cost is stored with the entry when this edit commits
+         * and weighs against evicting it under {@link EvictionPolicy#GDSF}.
+         * An entry keeps its previous cost if an edit records none.
+         */
+        public void setFetchCost(long cost) {
+            if (cost < 0) {
+                throw new IllegalArgumentException("cost < 0");
+            }
+            synchronized (DiskLruCache.this) {
+                fetchCost = cost;
+            }
+        }
+
         /**
          * Commits this edit so it is visible to readers.  This releases the
          * edit lock so another edit may be started on the same key.
@@ -817,7 +2514,7 @@ public final class DiskLruCache implements Closeable {
         public void commit() throws IOException {
             if (hasErrors) {
                 completeEdit(this, false);
-                remove(entry.key); // the previous entry is stale
+                removeEntry(entry); // the previous entry is stale
             } else {
                 completeEdit(this, true);
             }
@@ -868,6 +2565,42 @@ public final class DiskLruCache implements Closeable {
                 }
             }
         }
+
+        /**
+         * Writes a packed value straight to the segment of this edit. Only
+         * the thread writing the value calls {@link #write}; the value ends
+         * when the stream is closed, another value is started or the edit
+         * completes.
+         */
+        private final class SegmentValueOutputStream extends OutputStream {
+            private final int index;
+            private final long start;
+            private volatile boolean finished;
+
+            private SegmentValueOutputStream(int index, long start) {
+                this.index = index;
+                this.start = start;
+            }
+
+            @Override public void write(int oneByte) throws IOException {
+                write(new byte[] { (byte) oneByte }, 0, 1);
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+                if (finished) {
+                    throw new IOException("value " + index + " has ended");
+                }
+                appender.write(buffer, offset, length);
+            }
+
+            @Override public void close() {
+                synchronized (DiskLruCache.this) {
+                    if (openValue == this) {
+                        finishOpenValue();
+                    }
+                }
+            }
+        }
     }
 
     private final class Entry {
@@ -885,6 +2618,24 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** The binary form of this entry's name, created on first use by the binary journal. */
+        private byte[] digest;
+
+        /** The segment holding this entry's values, when using packed storage. */
+        private long segment;
+
+        /** The offset of this entry's first value in its segment. */
+        private long offset;
+
+        /** The cost of fetching this entry's values again, or 0 if unknown. */
+        private long fetchCost;
+
+        /** Number of commits and reads of this entry. */
+        private int accessCount;
+
+        /** Eviction priority under {@link EvictionPolicy#GDSF}; lowest goes first. */
+        private double priority;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
@@ -926,5 +2677,487 @@ public final class DiskLruCache implements Closeable {
         public File getDirtyFile(int i) {
             return new File(directory, key + "." + i + ".tmp");
         }
+
+        private long valueOffset(int i) {
+            long result = offset;
+            for (int t = 0; t < i; t++) {
+                result += lengths[t];
+            }
+            return result;
+        }
+
+        private long totalLength() {
+            return valueOffset(valueCount) - offset;
+        }
+
+        /** Returns a stream reading the committed value at {@code i}. */
+        private InputStream newInputStream(int i) throws IOException {
+            if (packedStorage) {
+                return segments.openInputStream(segment, valueOffset(i), lengths[i]);
+            }
+            return new FileInputStream(getCleanFile(i));
+        }
+
+        /** Returns a detached copy of this entry's state for journal rebuilds. */
+        private Entry copy() {
+            Entry copy = new Entry(key);
+            System.arraycopy(lengths, 0, copy.lengths, 0, valueCount);
+            copy.readable = readable;
+            copy.currentEditor = currentEditor;
+            copy.sequenceNumber = sequenceNumber;
+            copy.digest = digest;
+            copy.segment = segment;
+            copy.offset = offset;
+            copy.fetchCost = fetchCost;
+            copy.accessCount = accessCount;
+            return copy;
+        }
+
+        private byte[] getDigest() {
+            if (digest == null) {
+                digest = fromHex(key);
+            }
+            return digest;
+        }
+    }
+
+    /**
+     * Appends records to a journal. Calls are made while holding the cache
+     * lock.
+     */
+    private abstract class JournalWriter implements Closeable, Flushable {
+        private final CountingOutputStream counter;
+
+        JournalWriter(CountingOutputStream counter) {
+            this.counter = counter;
+        }
+
+        /**
+         * Returns the number of bytes that reached the file so far, not
+         * counting any still held in this writer's buffer.
+         */
+        long bytesWritten() {
+            return counter.count;
+        }
+
+        abstract void writeClean(Entry entry) throws IOException;
+
+        abstract void writeDirty(Entry entry) throws IOException;
+
+        abstract void writeRemove(Entry entry) throws IOException;
+
+        abstract void writeRead(Entry entry) throws IOException;
+
+        /**
+         * Records the fetch cost and access count of {@code entry}, if this
+         * journal format keeps them.
+         */
+        abstract void writeCost(Entry entry) throws IOException;
+
+        /** Returns the number of bytes {@link #writeRead} appends for {@code entry}. */
+        abstract int readRecordLength(Entry entry);
+    }
+
+    private final class TextJournalWriter extends JournalWriter {
+        private final Writer writer;
+
+        private TextJournalWriter(CountingOutputStream out) {
+            super(out);
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, /*Charsets.*/UTF_8));
+        }
+
+        private void writeHeader() throws IOException {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+        }
+
+        @Override void writeClean(Entry entry) throws IOException {
+            writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        }
+
+        @Override void writeDirty(Entry entry) throws IOException {
+            writer.write(DIRTY + ' ' + entry.key + '\n');
+        }
+
+        @Override void writeRemove(Entry entry) throws IOException {
+            writer.write(REMOVE + ' ' + entry.key + '\n');
+        }
+
+        @Override void writeRead(Entry entry) throws IOException {
+            writer.write(READ + ' ' + entry.key + '\n');
+        }
+
+        /**
+         * Does nothing: text journals keep the format readers of the original
+         * DiskLruCache expect, so costs are not persisted and start over from
+         * zero when the cache is opened again.
+         */
+        @Override void writeCost(Entry entry) {
+        }
+
+        @Override int readRecordLength(Entry entry) {
+            return READ.length() + entry.key.length() + 2;
+        }
+
+        @Override public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes fixed-width binary records. Records are assembled in a buffer
+     * owned by the writer so appending to the journal does not allocate.
+     */
+    private final class BinaryJournalWriter extends JournalWriter {
+        private final OutputStream out;
+        private final byte[] record;
+
+        private BinaryJournalWriter(CountingOutputStream out) {
+            super(out);
+            this.out = new BufferedOutputStream(out);
+            // opcode, digest and up to ten varint bytes per length, segment
+            // and offset
+            this.record = new byte[1 + KEY_DIGEST_LENGTH + 10 * (valueCount + 2)];
+        }
+
+        private void writeHeader() throws IOException {
+            writeInt(out, BINARY_MAGIC);
+            writeInt(out, packedStorage ? BINARY_VERSION_PACKED : BINARY_VERSION_1);
+            writeInt(out, appVersion);
+            writeInt(out, valueCount);
+        }
+
+        private int putKey(byte op, Entry entry) {
+            record[0] = op;
+            System.arraycopy(entry.getDigest(), 0, record, 1, KEY_DIGEST_LENGTH);
+            return 1 + KEY_DIGEST_LENGTH;
+        }
+
+        @Override void writeClean(Entry entry) throws IOException {
+            int length = putKey(OP_CLEAN, entry);
+            for (long value : entry.lengths) {
+                length = putVarint(record, length, value);
+            }
+            if (packedStorage) {
+                length = putVarint(record, length, entry.segment);
+                length = putVarint(record, length, entry.offset);
+            }
+            out.write(record, 0, length);
+        }
+
+        @Override void writeDirty(Entry entry) throws IOException {
+            out.write(record, 0, putKey(OP_DIRTY, entry));
+        }
+
+        @Override void writeRemove(Entry entry) throws IOException {
+            out.write(record, 0, putKey(OP_REMOVE, entry));
+        }
+
+        @Override void writeRead(Entry entry) throws IOException {
+            out.write(record, 0, putKey(OP_READ, entry));
+        }
+
+        @Override void writeCost(Entry entry) throws IOException {
+            int length = putKey(OP_COST, entry);
+            length = putVarint(record, length, entry.fetchCost);
+            length = putVarint(record, length, entry.accessCount);
+            out.write(record, 0, length);
+        }
+
+        @Override int readRecordLength(Entry entry) {
+            return 1 + KEY_DIGEST_LENGTH;
+        }
+
+        @Override public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Forwards records to the current journal and remembers them so they can
+     * be replayed onto a journal being rebuilt.
+     */
+    private final class RecordingJournalWriter extends JournalWriter {
+        private final JournalWriter delegate;
+        private final List<JournalOp> ops = new ArrayList<JournalOp>();
+
+        private RecordingJournalWriter(JournalWriter delegate) {
+            super(delegate.counter);
+            this.delegate = delegate;
+        }
+
+        private void record(byte op, Entry entry) {
+            // CLEAN and COST records carry state which may change before replay
+            ops.add(new JournalOp(op, op == OP_CLEAN || op == OP_COST ? entry.copy() : entry));
+        }
+
+        private void replay(JournalWriter writer) throws IOException {
+            for (JournalOp op : ops) {
+                switch (op.op) {
+                    case OP_CLEAN: writer.writeClean(op.entry); break;
+                    case OP_DIRTY: writer.writeDirty(op.entry); break;
+                    case OP_REMOVE: writer.writeRemove(op.entry); break;
+                    case OP_COST: writer.writeCost(op.entry); break;
+                    default: writer.writeRead(op.entry); break;
+                }
+            }
+        }
+
+        @Override void writeClean(Entry entry) throws IOException {
+            delegate.writeClean(entry);
+            record(OP_CLEAN, entry);
+        }
+
+        @Override void writeDirty(Entry entry) throws IOException {
+            delegate.writeDirty(entry);
+            record(OP_DIRTY, entry);
+        }
+
+        @Override void writeRemove(Entry entry) throws IOException {
+            delegate.writeRemove(entry);
+            record(OP_REMOVE, entry);
+        }
+
+        @Override void writeRead(Entry entry) throws IOException {
+            delegate.writeRead(entry);
+            record(OP_READ, entry);
+        }
+
+        @Override void writeCost(Entry entry) throws IOException {
+            delegate.writeCost(entry);
+            record(OP_COST, entry);
+        }
+
+        @Override int readRecordLength(Entry entry) {
+            return delegate.readRecordLength(entry);
+        }
+
+        @Override public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /** The state an index checkpoint describes, copied while holding the cache lock. */
+    private final class Checkpoint {
+        private final long journalLength;
+        private final long journalGeneration;
+        private final long sequenceNumber;
+        private final double inflationValue;
+        private final List<Entry> entries;
+
+        private Checkpoint(long journalLength, List<Entry> entries) {
+            this.journalLength = journalLength;
+            this.journalGeneration = DiskLruCache.this.journalGeneration;
+            this.sequenceNumber = nextSequenceNumber;
+            this.inflationValue = inflation;
+            this.entries = entries;
+        }
+
+        private void writeTo(File file) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION_3);
+                out.writeInt(appVersion);
+                out.writeInt(valueCount);
+                out.writeBoolean(binaryJournal);
+                out.writeBoolean(packedStorage);
+                out.writeLong(journalLength);
+                out.writeLong(sequenceNumber);
+                out.writeDouble(inflationValue);
+                out.writeInt(entries.size());
+                byte[] scratch = new byte[10];
+                for (Entry entry : entries) {
+                    out.writeUTF(entry.key);
+                    out.writeBoolean(entry.readable);
+                    out.writeBoolean(entry.currentEditor != null);
+                    writeVarint(out, scratch, entry.sequenceNumber);
+                    for (long length : entry.lengths) {
+                        writeVarint(out, scratch, length);
+                    }
+                    if (packedStorage) {
+                        writeVarint(out, scratch, entry.segment);
+                        writeVarint(out, scratch, entry.offset);
+                    }
+                    writeVarint(out, scratch, entry.fetchCost);
+                    writeVarint(out, scratch, entry.accessCount);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class JournalOp {
+        private final byte op;
+        private final Entry entry;
+
+        private JournalOp(byte op, Entry entry) {
+            this.op = op;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * The progress of a value being written by an editor, shared with the
+     * readers attached to the edit. Guarded by its own monitor, which is
+     * notified when bytes are written and when the value ends.
+     */
+    private static final class PendingValue {
+        /** True once the editor opened an output stream for this value. */
+        private boolean started;
+        /** Number of bytes written so far. */
+        private long written;
+        /** True once the value is complete: its stream was closed or the edit committed. */
+        private boolean complete;
+        /** True if the edit was aborted or the value is being rewritten. */
+        private boolean failed;
+        /** The file the value is written to. */
+        private File file;
+        /** The position of the value in {@link #file}. */
+        private long offset;
+    }
+
+    private static final class PendingValueOutputStream extends FilterOutputStream {
+        private final PendingValue value;
+
+        private PendingValueOutputStream(OutputStream out, PendingValue value) {
+            super(out);
+            this.value = value;
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+            synchronized (value) {
+                try {
+                    out.write(buffer, offset, length);
+                } catch (IOException e) {
+                    // the edit will fail; don't let readers end with a truncated value
+                    value.failed = true;
+                    throw e;
+                } finally {
+                    value.notifyAll();
+                }
+                value.written += length;
+            }
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                synchronized (value) {
+                    value.complete = true;
+                    value.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a value while it is being written, waiting for the editor when
+     * all bytes written so far have been read, but no longer than the
+     * timeout between two writes.
+     */
+    private static final class PendingValueInputStream extends InputStream {
+        private final PendingValue value;
+        private final long timeoutMillis;
+        private long position;
+        private InputStream file;
+
+        private PendingValueInputStream(PendingValue value, long timeoutMillis) {
+            this.value = value;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            synchronized (value) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                while (!value.failed && position == value.written && !value.complete) {
+                    long remaining = timeoutMillis == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeoutMillis != 0 && remaining <= 0) {
+                        throw new InterruptedIOException("timed out waiting for the editor");
+                    }
+                    try {
+                        value.wait(remaining);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (value.failed) {
+                    throw new IOException("edit aborted");
+                }
+                if (position == value.written) {
+                    return -1;
+                }
+                count = (int) Math.min(length, value.written - position);
+                if (file == null) {
+                    // opened under the lock so a commit cannot rename it meanwhile
+                    file = new FileInputStream(value.file);
+                    skipFully(file, value.offset + position);
+                }
+            }
+            count = file.read(buffer, offset, count);
+            if (count == -1) {
+                throw new EOFException(); // the file is shorter than what was written
+            }
+            position += count;
+            return count;
+        }
+
+        @Override public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            count++;
+        }
+
+        @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
     }
 }
@@ -0,0 +1,125 @@
+package com.applidium.shutterbug.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often keys were accessed recently, used
+ * by {@link ConcurrentLruCache} to decide whether a new entry is worth more
+ * than the one it would evict.
+ *
+ * <p>Counters are 4 bits wide, sixteen to a {@code long}, and each key maps
+ * to four counters in four different slots; its frequency is the smallest of
+ * them. Once the number of increments reaches ten times the number of slots
+ * every counter is halved, so that keys that were popular a long time ago
+ * fade out.
+ *
+ * <p>Increments may race with each other and with the halving; the sketch is
+ * an estimate and a lost update is harmless.
+ */
+final class FrequencySketch {
+    private static final long   RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS      = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    private final AtomicLongArray table;
+    private final int             tableMask;
+    private final int             sampleSize;
+    private final AtomicInteger   additions = new AtomicInteger();
+
+    /**
+     * @param expectedEntries the number of entries whose frequency should be
+     *            told apart; more are tolerated at the cost of accuracy.
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /** Returns the number of entries this sketch was sized for. */
+    int capacity() {
+        return table.length();
+    }
+
+    /** Returns the estimated number of recent accesses to {@code key}, up to 15. */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long slot = table.get(indexOf(hash, i));
+            int count = (int) ((slot >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records an access to {@code key}. */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Records {@code count} accesses to {@code key} at once, up to the
+     * maximum frequency. Used to carry frequencies over to a larger sketch;
+     * they do not count towards the next halving.
+     */
+    void increment(Object key, int count) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        for (int n = 0; n < count; n++) {
+            for (int i = 0; i < 4; i++) {
+                incrementAt(indexOf(hash, i), start + i);
+            }
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = 0xfL << shift;
+        while (true) {
+            long slot = table.get(index);
+            if ((slot & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, slot, slot + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        additions.set(0);
+        for (int i = 0; i < table.length(); i++) {
+            while (true) {
+                long slot = table.get(i);
+                if (table.compareAndSet(i, slot, (slot >>> 1) & RESET_MASK)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -1,12 +1,13 @@
 package com.applidium.shutterbug.cache;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.applidium.shutterbug.cache.DiskLruCache.Editor;
@@ -14,12 +15,23 @@ import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
 import com.applidium.shutterbug.downloader.DownloaderImage;
 import com.applidium.shutterbug.utils.DownloadRequest;
 import com.applidium.shutterbug.utils.CustomCacheKeyDownloadRequest;
+import com.applidium.shutterbug.utils.RequestScheduler;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageCache {
     private static final String TAG = "Shutterbug_ImageCache";
@@ -28,6 +40,15 @@ public class ImageCache {
     public static final String MIMETYPE_PNG = "image/png";
     public static final String MIMETYPE_JPEG = "image/jpeg";
 
+    /**
+     * Told whether a queried image was found. An image found in memory is
+     * reported right away on the querying thread; otherwise the listener is
+     * called on a background thread, usually one of {@link RequestScheduler}.
+     *
+     * <p>An image found is {@link DownloaderImage#retain() retained} for the
+     * listener, which hands it back with {@link ImageCache#release} once it
+     * stops using it. Images never released are never decoded into again.
+     */
     public interface ImageCacheListener {
         void onImageFound(ImageCache imageCache, DownloaderImage downloaderImage, String key, DownloadRequest downloadRequest);
         void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest);
@@ -37,20 +58,73 @@ public class ImageCache {
     private final static int         DISK_CACHE_VALUE_COUNT = 2;
     // 100 MB of disk cache
     private final static int         DEFAULT_DISK_CACHE_SIZE = 100 * 1024 * 1024;
+    // A single segment keeps the layout of caches written by older versions
+    private final static int         DEFAULT_DISK_CACHE_SHARD_COUNT = 1;
+    // Write a disk index checkpoint every 64 KB of journal
+    private final static int         DISK_CACHE_CHECKPOINT_INTERVAL = 64 * 1024;
+    // Trim the disk cache down to 90% of its size once it is full
+    private final static float       DISK_CACHE_LOW_WATERMARK = 0.9f;
+    // Stop reading an image being downloaded after 10 s without progress
+    private final static long        DISK_CACHE_PENDING_READ_TIMEOUT = 10 * 1000;
+    // Reconsider the memory cache size every 256 memory lookups
+    private final static int         MEMORY_CACHE_TUNING_INTERVAL = 256;
+    // Give memory back to the memory cache a minute after the last trim
+    private final static long        MEMORY_CACHE_REGROW_DELAY = 60 * 1000;
+    // Auto-tuning grows the memory cache while fewer lookups hit it...
+    private final static float       MEMORY_CACHE_LOW_HIT_RATIO = 0.6f;
+    // ...and shrinks it while more do
+    private final static float       MEMORY_CACHE_HIGH_HIT_RATIO = 0.9f;
 
     private static ImageCache        sImageCache;
     private Context                  mContext;
     private int                      mDiskCacheSize;
-    private LruCache<String, DownloaderImage> mMemoryCache;
-    private DiskLruCache             mDiskCache;
+    private int                      mDiskCacheShardCount;
+    private ConcurrentLruCache<String, DownloaderImage> mMemoryCache;
+    // GIFs mapped from the disk cache, outside of the Java heap, with a
+    // budget of their own so that a few large ones don't push bitmaps out
+    private ConcurrentLruCache<String, DownloaderImage> mMovieCache;
+    private BitmapPool               mBitmapPool;
+    // Encoded bytes of images read from disk, as mappings of the cache files
+    // that take no Java heap. Several times more images fit than decoded,
+    // and a hit only costs a decode.
+    private ConcurrentLruCache<String, ByteBuffer> mEncodedCache;
+
+    // The memory cache size is the smaller of mMemoryCacheTarget, tuned from
+    // the hit ratio, and mMemoryCacheCeiling, lowered under memory pressure.
+    // Both stay between mMinMemoryCacheSize and mMaxMemoryCacheSize.
+    private final int                mDefaultMemoryCacheSize;
+    private final int                mMinMemoryCacheSize;
+    private final int                mMaxMemoryCacheSize;
+    private int                      mMemoryCacheTarget;
+    private int                      mMemoryCacheCeiling;
+    private long                     mLastTrimTime;
+    private boolean                  mMemoryCacheAutoTuning;
+    private final AtomicInteger      mMemoryLookups = new AtomicInteger();
+    // Memory cache counters when the size was last reconsidered
+    private int                      mTunedHitCount;
+    private int                      mTunedMissCount;
+    private int                      mTunedEvictionCount;
+    private volatile ShardedDiskLruCache mDiskCache;
+
+    // The disk cache is opened in the background; lookups made meanwhile are
+    // queued and run once it is ready
+    private final Object             mDiskCacheLock = new Object();
+    private boolean                  mDiskCacheStarting = true;
+    private List<PendingDiskLookup>  mPendingDiskLookups = new ArrayList<PendingDiskLookup>();
+    private final ExecutorService    mDiskCacheExecutor = Executors.newSingleThreadExecutor();
 
     ImageCache(Context context) {
         this(context, DEFAULT_DISK_CACHE_SIZE);
     }
 
     ImageCache(Context context, int diskCacheSize) {
+        this(context, diskCacheSize, DEFAULT_DISK_CACHE_SHARD_COUNT);
+    }
+
+    ImageCache(Context context, int diskCacheSize, int diskCacheShardCount) {
         mContext = context;
         mDiskCacheSize = diskCacheSize;
+        mDiskCacheShardCount = diskCacheShardCount;
 
         // Get memory class of this device, exceeding this amount will throw an
         // OutOfMemory exception.
@@ -58,8 +132,30 @@ public class ImageCache {
 
         // Use 1/8th of the available memory for this memory cache.
         final int cacheSize = 1024 * 1024 * memClass / 8;
+        // Between 1/32th and 1/4th once adjusted to memory pressure and hit ratio
+        mMinMemoryCacheSize = 1024 * 1024 * memClass / 32;
+        mMaxMemoryCacheSize = 1024 * 1024 * memClass / 4;
+        mDefaultMemoryCacheSize = cacheSize;
+        mMemoryCacheTarget = cacheSize;
+        mMemoryCacheCeiling = mMaxMemoryCacheSize;
 
-        mMemoryCache = new LruCache<String, DownloaderImage>(cacheSize) {
+        // Encoded images are about a tenth of their decoded size
+        mEncodedCache = new ConcurrentLruCache<String, ByteBuffer>(cacheSize / 2) {
+            @Override
+            protected int sizeOf(String key, ByteBuffer encoded) {
+                return encoded.capacity();
+            }
+        };
+
+        // Intermediate bitmaps of scaled decodes, and cached bitmaps once
+        // they are evicted and released by every listener, are decoded into
+        // again
+        mBitmapPool = new BitmapPool(cacheSize / 4);
+
+        // Flinging through a long list requests many images once; only let
+        // them replace images that are requested at least as often
+        mMemoryCache = new ConcurrentLruCache<String, DownloaderImage>(cacheSize,
+                ConcurrentLruCache.Policy.WINDOW_TINY_LFU) {
             @Override
             protected int sizeOf(String key, DownloaderImage downloaderImage) {
                 if(downloaderImage.isBitmap()) {
@@ -68,26 +164,66 @@ public class ImageCache {
                     Bitmap bitmap = downloaderImage.getBitmap();
                     return bitmap.getRowBytes() * bitmap.getHeight();
                 } else {
-                    return downloaderImage.getMovieBytes().length;
+                    return downloaderImage.getMovieByteCount();
                 }
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, DownloaderImage oldValue,
+                    DownloaderImage newValue) {
+                // Pooled once no listener displays it either
+                release(oldValue);
+            }
+        };
+
+        mMovieCache = new ConcurrentLruCache<String, DownloaderImage>(cacheSize / 2) {
+            @Override
+            protected int sizeOf(String key, DownloaderImage downloaderImage) {
+                return downloaderImage.getMovieByteCount();
+            }
         };
 
-        openDiskCache();
+        // Memory pressure callbacks with levels were added in Ice Cream Sandwich
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            context.getApplicationContext().registerComponentCallbacks(new ImageCacheMemoryCallbacks(this));
+        }
+
+        mDiskCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                openDiskCache();
+            }
+        });
     }
 
+    /**
+     * Returns the size of the disk cache, or 0 while it is still being opened.
+     */
     public long getCacheSize() {
-        return mDiskCache.size();
+        ShardedDiskLruCache diskCache = mDiskCache;
+        return diskCache != null ? diskCache.size() : 0;
     }
 
-    public static ImageCache getSharedImageCache(Context context, int maxCacheSize) {
+    public static synchronized ImageCache getSharedImageCache(Context context, int maxCacheSize) {
         if (sImageCache == null) {
             sImageCache = new ImageCache(context, maxCacheSize);
         }
         return sImageCache;
     }
 
-    public static ImageCache getSharedImageCache(Context context) {
+    /**
+     * @param shardCount number of independent disk cache segments. Lookups and
+     *            commits on different segments do not wait on each other; the
+     *            disk cache size is shared between all segments.
+     */
+    public static synchronized ImageCache getSharedImageCache(Context context, int maxCacheSize, int shardCount) {
+        if (sImageCache == null) {
+            sImageCache = new ImageCache(context, maxCacheSize, shardCount);
+        }
+        return sImageCache;
+    }
+
+    public static synchronized ImageCache getSharedImageCache(Context context) {
         if (sImageCache == null) {
             sImageCache = new ImageCache(context);
         }
@@ -101,7 +237,7 @@ public class ImageCache {
         }
 
         // First check the in-memory cache...
-        DownloaderImage cachedDownloaderImage = mMemoryCache.get(cacheKey);
+        DownloaderImage cachedDownloaderImage = getFromMemory(cacheKey);
 
         if (cachedDownloaderImage != null) {
             // ...notify listener immediately, no need to go async
@@ -109,23 +245,115 @@ public class ImageCache {
             return;
         }
 
-        if (mDiskCache != null) {
-            BitmapDecoderTask bitmapDecoderTask = new BitmapDecoderTask(cacheKey, listener, downloadRequest);
-            // AsyncTask was changed in Honeycomb to execute in serial by default, at which time
-            // executeOnExecutor was added to specify parallel execution.
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                bitmapDecoderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        // ...then the encoded bytes, which only need decoding...
+        ByteBuffer encoded = mEncodedCache.get(cacheKey);
+        if (encoded != null) {
+            schedule(new BitmapDecoderTask(cacheKey, listener, downloadRequest, encoded), downloadRequest);
+            return;
+        }
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskCacheStarting) {
+                mPendingDiskLookups.add(new PendingDiskLookup(cacheKey, listener, downloadRequest));
+                return;
+            }
+        }
+        queryDiskCache(cacheKey, listener, downloadRequest);
+    }
+
+    /**
+     * Looks up several images at once, as when a screen of list items is
+     * bound. Images in memory are reported right away; the others are looked
+     * up on disk with a single lock acquisition per disk cache segment, and
+     * the hits are then decoded in parallel. {@code cacheKeys} and
+     * {@code downloadRequests} must have the same size.
+     */
+    public void queryCache(List<String> cacheKeys, ImageCacheListener listener, List<DownloadRequest> downloadRequests) {
+        List<String> diskKeys = new ArrayList<String>();
+        List<DownloadRequest> diskRequests = new ArrayList<DownloadRequest>();
+        for (int i = 0; i < cacheKeys.size(); i++) {
+            String cacheKey = cacheKeys.get(i);
+            DownloadRequest downloadRequest = downloadRequests.get(i);
+            DownloaderImage cachedDownloaderImage = null;
+            if (cacheKey != null) {
+                cachedDownloaderImage = getFromMemory(cacheKey);
+            }
+            ByteBuffer encoded;
+            if (cachedDownloaderImage != null) {
+                listener.onImageFound(this, cachedDownloaderImage, cacheKey, downloadRequest);
+            } else if (cacheKey == null) {
+                listener.onImageNotFound(this, cacheKey, downloadRequest);
+            } else if ((encoded = mEncodedCache.get(cacheKey)) != null) {
+                schedule(new BitmapDecoderTask(cacheKey, listener, downloadRequest, encoded), downloadRequest);
             } else {
-                bitmapDecoderTask.execute();
+                diskKeys.add(cacheKey);
+                diskRequests.add(downloadRequest);
             }
+        }
+        if (diskKeys.isEmpty()) {
+            return;
+        }
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskCacheStarting) {
+                for (int i = 0; i < diskKeys.size(); i++) {
+                    mPendingDiskLookups.add(new PendingDiskLookup(diskKeys.get(i), listener, diskRequests.get(i)));
+                }
+                return;
+            }
+        }
+        if (mDiskCache == null) {
+            for (int i = 0; i < diskKeys.size(); i++) {
+                listener.onImageNotFound(this, diskKeys.get(i), diskRequests.get(i));
+            }
+            return;
+        }
+        // Shared by the requests: never dropped, its decoder tasks may be
+        schedule(new BatchLookupTask(diskKeys, listener, diskRequests), null);
+    }
+
+    private void queryDiskCache(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest) {
+        if (mDiskCache != null) {
+            schedule(new BitmapDecoderTask(cacheKey, listener, downloadRequest, (Snapshot) null), downloadRequest);
             return;
         }
         listener.onImageNotFound(this, cacheKey, downloadRequest);
     }
 
+    /**
+     * Runs {@code task} at the priority of {@code downloadRequest}, which may
+     * be null. The task is dropped if the request is canceled by the time it
+     * would run.
+     */
+    private static void schedule(Runnable task, DownloadRequest downloadRequest) {
+        RequestScheduler.getDefault().executorFor(downloadRequest).execute(task);
+    }
+
+    /**
+     * Blocks until the disk cache has been opened and returns it, or null if it
+     * could not be opened. Must not be called from the main thread.
+     */
+    private ShardedDiskLruCache awaitDiskCache() {
+        synchronized (mDiskCacheLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mDiskCache;
+        }
+    }
+
     public Snapshot storeToDisk(InputStream inputStream, String cacheKey) {
+        ShardedDiskLruCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
         try {
-            Editor editor = mDiskCache.edit(cacheKey);
+            Editor editor = diskCache.edit(cacheKey);
             final OutputStream outputStream = editor.newOutputStream(0);
             final int bufferSize = 1024;
             try {
@@ -138,7 +366,7 @@ public class ImageCache {
                 }
                 outputStream.close();
                 editor.commit();
-                return mDiskCache.get(cacheKey);
+                return diskCache.get(cacheKey);
             } catch (Exception e) {
                 Log.d(TAG, e.getMessage(), e);
             }
@@ -148,10 +376,66 @@ public class ImageCache {
         return null;
     }
 
+    /**
+     * Streams an encoded image into the disk cache without decoding it and
+     * returns a snapshot of the committed entry. Returns null without reading
+     * from {@code inputStream} if the disk cache is unavailable or the entry
+     * is already being written, and null after a failed write.
+     */
+    public Snapshot storeEncodedToDisk(InputStream inputStream, String mimeType, String cacheKey) {
+        ShardedDiskLruCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        Editor editor = null;
+        try {
+            editor = diskCache.edit(cacheKey);
+            if (editor == null) {
+                return null;
+            }
+            editor.set(0, MIMETYPE_GIF.equals(mimeType) ? "0" : "1");
+            // The stream is read as it downloads, so copying it takes about as
+            // long as fetching the image again would
+            final long startTime = SystemClock.elapsedRealtime();
+            final OutputStream outputStream = editor.newOutputStream(1);
+            final int bufferSize = 8192;
+            byte[] bytes = new byte[bufferSize];
+            for (;;) {
+                int count = inputStream.read(bytes, 0, bufferSize);
+                if (count == -1)
+                    break;
+                outputStream.write(bytes, 0, count);
+            }
+            outputStream.close();
+            editor.setFetchCost(SystemClock.elapsedRealtime() - startTime);
+            editor.commit();
+            editor = null;
+            return diskCache.get(cacheKey);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+        } finally {
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IOException e) {
+                    Log.d(TAG, e.getMessage(), e);
+                }
+            }
+        }
+        return null;
+    }
+
     public Snapshot storeToDisk(DownloaderImage downloaderImage, String cacheKey) {
+        ShardedDiskLruCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
         try {
             boolean isBitmap = downloaderImage.isBitmap();
-            Editor editor = mDiskCache.edit(cacheKey);
+            Editor editor = diskCache.edit(cacheKey);
+            if (editor == null) {
+                return null; // another thread is writing this entry
+            }
             editor.set(0, isBitmap ? "1" : "0");
             final OutputStream outputStream = editor.newOutputStream(1);
             try {
@@ -165,11 +449,17 @@ public class ImageCache {
                         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
                     }
                 } else {
-                    outputStream.write(downloaderImage.getMovieBytes());
+                    ByteBuffer movie = downloaderImage.getMovieBuffer();
+                    byte[] bytes = new byte[8192];
+                    while (movie.hasRemaining()) {
+                        int count = Math.min(bytes.length, movie.remaining());
+                        movie.get(bytes, 0, count);
+                        outputStream.write(bytes, 0, count);
+                    }
                 }
                 outputStream.close();
                 editor.commit();
-                return mDiskCache.get(cacheKey);
+                return diskCache.get(cacheKey);
             } catch (Exception e) {
                 Log.e(TAG, e.getMessage(), e);
             }
@@ -179,54 +469,489 @@ public class ImageCache {
         return null;
     }
 
-    public void storeToMemory(DownloaderImage downloaderImage, String cacheKey) {
-        mMemoryCache.put(cacheKey, downloaderImage);
+    /**
+     * Returns a snapshot of the disk cache entry for {@code cacheKey}, or null
+     * if there is none. Must not be called from the main thread.
+     */
+    public Snapshot getFromDisk(String cacheKey) {
+        ShardedDiskLruCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            return diskCache.get(cacheKey);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+            return null;
+        }
     }
 
-    public void clear() {
+    /**
+     * Drops the disk cache entry for {@code cacheKey}, if any.
+     */
+    public void removeFromDisk(String cacheKey) {
+        ShardedDiskLruCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return;
+        }
         try {
-            mDiskCache.delete();
-            openDiskCache();
-            Log.d(TAG, "clearing image cache");
+            diskCache.remove(cacheKey);
         } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
+            Log.d(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the pool of bitmaps decoders should decode into.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Keeps {@code downloaderImage} in memory, counting a use of it until it
+     * is evicted. The caller must hold a use of it.
+     */
+    public void storeToMemory(DownloaderImage downloaderImage, String cacheKey) {
+        if (!downloaderImage.retain()) {
+            return;
+        }
+        if (downloaderImage.isMovieOffHeap()) {
+            mMovieCache.put(cacheKey, downloaderImage);
+        } else {
+            mMemoryCache.put(cacheKey, downloaderImage);
+        }
+    }
+
+    /**
+     * Returns the image in memory for {@code cacheKey}, retained for the
+     * caller, or null if there is none.
+     */
+    private DownloaderImage getFromMemory(String cacheKey) {
+        DownloaderImage downloaderImage = mMemoryCache.get(cacheKey);
+        onMemoryLookup();
+        if (downloaderImage == null) {
+            downloaderImage = mMovieCache.get(cacheKey);
+        }
+        if (downloaderImage != null && !downloaderImage.retain()) {
+            // Evicted and released by everyone since the lookup
+            return null;
+        }
+        return downloaderImage;
+    }
+
+    /**
+     * Ends a use of {@code downloaderImage}, such as the one retained for an
+     * {@link ImageCacheListener}. Once nothing uses it anymore, neither the
+     * memory cache nor a listener, its bitmap is decoded into again.
+     */
+    public void release(DownloaderImage downloaderImage) {
+        if (downloaderImage.release()) {
+            mBitmapPool.put(downloaderImage.getBitmap());
+        }
+    }
+
+    /**
+     * Lets the memory cache grow, up to 1/4th of the memory class, while
+     * fewer than 60% of lookups hit it and images are evicted, and shrink,
+     * down to 1/32th, while more than 90% do. Memory pressure still caps its
+     * size. Off by default: the memory cache uses 1/8th of the memory class.
+     */
+    public synchronized void setMemoryCacheAutoTuning(boolean autoTuning) {
+        mMemoryCacheAutoTuning = autoTuning;
+        if (!autoTuning) {
+            mMemoryCacheTarget = mDefaultMemoryCacheSize;
+            applyMemoryCacheSize();
+        }
+    }
+
+    /**
+     * Shrinks the memory cache according to {@code level}, one of the
+     * {@link ComponentCallbacks2} TRIM_MEMORY_ constants. The cache grows back
+     * once the pressure is gone. Called automatically from Ice Cream Sandwich
+     * on.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            // Next in line to be killed: whatever is freed helps
+            trimMemoryCache(mMinMemoryCacheSize);
+            mMemoryCache.evictAll();
+            mMovieCache.evictAll();
+            mEncodedCache.evictAll();
+            mBitmapPool.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimMemoryCache(mMinMemoryCacheSize);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // In the background, UI hidden, or low on memory while running
+            trimMemoryCache(getMemoryCacheSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimMemoryCache(getMemoryCacheSize() * 3 / 4);
+        }
+    }
+
+    /**
+     * Empties the memory cache and keeps it at its smallest size until the
+     * pressure is gone.
+     */
+    public synchronized void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    private void trimMemoryCache(int ceiling) {
+        mMemoryCacheCeiling = Math.max(ceiling, mMinMemoryCacheSize);
+        mLastTrimTime = SystemClock.elapsedRealtime();
+        applyMemoryCacheSize();
+    }
+
+    private int getMemoryCacheSize() {
+        return Math.min(mMemoryCacheTarget, mMemoryCacheCeiling);
+    }
+
+    private void applyMemoryCacheSize() {
+        int memoryCacheSize = getMemoryCacheSize();
+        if (memoryCacheSize != mMemoryCache.maxSize()) {
+            mMemoryCache.resize(memoryCacheSize);
+            mMovieCache.resize(memoryCacheSize / 2);
+            mEncodedCache.resize(memoryCacheSize / 2);
+            mBitmapPool.resize(memoryCacheSize / 4);
+        }
+    }
+
+    private void onMemoryLookup() {
+        if (mMemoryLookups.incrementAndGet() % MEMORY_CACHE_TUNING_INTERVAL == 0) {
+            tuneMemoryCache();
         }
+    }
+
+    /**
+     * Lifts the memory pressure cap once it has lasted long enough and, when
+     * auto-tuning, adjusts the size to the hit ratio since the last call.
+     */
+    private synchronized void tuneMemoryCache() {
+        if (mMemoryCacheCeiling < mMaxMemoryCacheSize
+                && SystemClock.elapsedRealtime() - mLastTrimTime >= MEMORY_CACHE_REGROW_DELAY) {
+            // Double it at each step, not to be trimmed again right away
+            mMemoryCacheCeiling = (int) Math.min((long) mMemoryCacheCeiling * 2, mMaxMemoryCacheSize);
+        }
+
+        int hitCount = mMemoryCache.hitCount();
+        int missCount = mMemoryCache.missCount();
+        int evictionCount = mMemoryCache.evictionCount();
+        int hits = hitCount - mTunedHitCount;
+        int lookups = hits + missCount - mTunedMissCount;
+        int evictions = evictionCount - mTunedEvictionCount;
+        mTunedHitCount = hitCount;
+        mTunedMissCount = missCount;
+        mTunedEvictionCount = evictionCount;
+
+        if (mMemoryCacheAutoTuning && lookups > 0) {
+            float hitRatio = (float) hits / lookups;
+            if (hitRatio < MEMORY_CACHE_LOW_HIT_RATIO && evictions > 0) {
+                // Images were requested again after being evicted
+                mMemoryCacheTarget = Math.min(mMemoryCacheTarget + mMemoryCacheTarget / 4, mMaxMemoryCacheSize);
+            } else if (hitRatio > MEMORY_CACHE_HIGH_HIT_RATIO) {
+                mMemoryCacheTarget = Math.max(mMemoryCacheTarget - mMemoryCacheTarget / 8, mMinMemoryCacheSize);
+            }
+        }
+        applyMemoryCacheSize();
+    }
+
+    /**
+     * Empties the memory cache right away and the disk cache in the
+     * background. Disk lookups made before the disk cache is reopened are
+     * queued.
+     */
+    public void clear() {
+        synchronized (mDiskCacheLock) {
+            mDiskCacheStarting = true;
+        }
+        mDiskCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ShardedDiskLruCache diskCache = mDiskCache;
+                mDiskCache = null;
+                if (diskCache != null) {
+                    try {
+                        diskCache.delete();
+                        Log.d(TAG, "clearing image cache");
+                    } catch (IOException e) {
+                        Log.e(TAG, e.getMessage(), e);
+                    }
+                }
+                openDiskCache();
+            }
+        });
         mMemoryCache.evictAll();
+        mMovieCache.evictAll();
+        mEncodedCache.evictAll();
+    }
+
+    /**
+     * Keeps the encoded image mapped in {@code buffer}, unless it would take
+     * more than an eighth of the encoded memory cache. The mapping stays
+     * valid once the cache entry is closed or evicted.
+     */
+    private void storeEncodedToMemory(String cacheKey, ByteBuffer buffer) {
+        if (buffer.remaining() > mEncodedCache.maxSize() / 8) {
+            return;
+        }
+        mEncodedCache.put(cacheKey, buffer.asReadOnlyBuffer());
     }
 
-    private class BitmapDecoderTask extends AsyncTask<Void, Void, DownloaderImage> {
+    /**
+     * Reads {@code inputStream} to its end into a buffer on the Java heap,
+     * flipped for reading. For movies that are not in the disk cache, which
+     * are mapped from it instead.
+     */
+    public static ByteBuffer readToBuffer(InputStream inputStream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] input = new byte[8192];
+        int read;
+        while ((read = inputStream.read(input)) != -1) {
+            if (buffer.remaining() < read) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                        buffer.position() + read));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put(input, 0, read);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Remembers the first read error of the stream it wraps, for readers that
+     * don't report them.
+     */
+    private static class FailureRecordingInputStream extends FilterInputStream {
+        IOException mFailure;
+
+        FailureRecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw record(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                throw record(e);
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            try {
+                return super.skip(count);
+            } catch (IOException e) {
+                throw record(e);
+            }
+        }
+
+        private IOException record(IOException e) {
+            if (mFailure == null) {
+                mFailure = e;
+            }
+            return e;
+        }
+    }
+
+    private static class PendingDiskLookup {
+        final String             mCacheKey;
+        final ImageCacheListener mListener;
+        final DownloadRequest    mDownloadRequest;
+
+        PendingDiskLookup(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest) {
+            mCacheKey = cacheKey;
+            mListener = listener;
+            mDownloadRequest = downloadRequest;
+        }
+    }
+
+    /**
+     * Looks up several keys in the disk cache at once, then reports the misses
+     * and starts a decoder task for each hit.
+     */
+    private class BatchLookupTask implements Runnable {
+        private List<String>          mCacheKeys;
+        private ImageCacheListener    mListener;
+        private List<DownloadRequest> mDownloadRequests;
+
+        public BatchLookupTask(List<String> cacheKeys, ImageCacheListener listener, List<DownloadRequest> downloadRequests) {
+            mCacheKeys = cacheKeys;
+            mListener = listener;
+            mDownloadRequests = downloadRequests;
+        }
+
+        @Override
+        public void run() {
+            Map<String, Snapshot> snapshots = lookUp();
+            Set<String> foundKeys = new HashSet<String>();
+            for (int i = 0; i < mCacheKeys.size(); i++) {
+                String cacheKey = mCacheKeys.get(i);
+                // A key listed several times has one snapshot, handed to its
+                // first request; the others look the entry up again
+                Snapshot snapshot = snapshots.remove(cacheKey);
+                if (snapshot != null || foundKeys.contains(cacheKey)) {
+                    foundKeys.add(cacheKey);
+                    schedule(new BitmapDecoderTask(cacheKey, mListener, mDownloadRequests.get(i), snapshot),
+                            mDownloadRequests.get(i));
+                } else {
+                    mListener.onImageNotFound(ImageCache.this, cacheKey, mDownloadRequests.get(i));
+                }
+            }
+        }
+
+        private Map<String, Snapshot> lookUp() {
+            ShardedDiskLruCache diskCache = awaitDiskCache();
+            if (diskCache != null) {
+                try {
+                    return diskCache.getAll(mCacheKeys);
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+            return new HashMap<String, Snapshot>();
+        }
+    }
+
+    /**
+     * Decodes the image in {@code encoded}, into a bitmap of {@code pool} if
+     * it has a fitting one. {@code options} may hold the bounds of the image
+     * and a sample size; the bounds are read if they are missing.
+     */
+    public static Bitmap decodeBitmap(ByteBuffer encoded, BitmapPool pool, BitmapFactory.Options options) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, options);
+            options.inJustDecodeBounds = false;
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+        }
+        pool.addInBitmapOptions(options);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && options.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap doesn't fit this image after all
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, options);
+    }
+
+    public static Bitmap decodeBitmap(ByteBuffer encoded, BitmapPool pool) {
+        return decodeBitmap(encoded, pool, new BitmapFactory.Options());
+    }
+
+    private class BitmapDecoderTask implements RequestScheduler.DroppableTask {
         private String             mCacheKey;
         private ImageCacheListener mListener;
         private DownloadRequest    mDownloadRequest;
+        private Snapshot           mSnapshot;
+        private ByteBuffer         mEncoded;
 
-        public BitmapDecoderTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest) {
+        /**
+         * @param snapshot the entry to decode, already looked up, or null to
+         *            look it up in the background
+         */
+        public BitmapDecoderTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest,
+                Snapshot snapshot) {
             mCacheKey = cacheKey;
             mListener = listener;
             mDownloadRequest = downloadRequest;
+            mSnapshot = snapshot;
+        }
+
+        /**
+         * @param encoded the encoded bitmap to decode, found in memory
+         */
+        public BitmapDecoderTask(String cacheKey, ImageCacheListener listener, DownloadRequest downloadRequest,
+                ByteBuffer encoded) {
+            this(cacheKey, listener, downloadRequest, (Snapshot) null);
+            mEncoded = encoded;
+        }
+
+        @Override
+        public void run() {
+            DownloaderImage result = decode();
+            if (result != null) {
+                // Retained for the listener, then for the memory cache
+                result.retain();
+                storeToMemory(result, mCacheKey);
+                mListener.onImageFound(ImageCache.this, result, mCacheKey, mDownloadRequest);
+            } else {
+                mListener.onImageNotFound(ImageCache.this, mCacheKey, mDownloadRequest);
+            }
         }
 
         @Override
-        protected DownloaderImage doInBackground(Void... params) {
+        public void onDropped() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+            }
+            mListener.onImageNotFound(ImageCache.this, mCacheKey, mDownloadRequest);
+        }
+
+        private DownloaderImage decode() {
+            if (mEncoded != null) {
+                try {
+                    Bitmap bitmap = decodeBitmap(mEncoded, mBitmapPool);
+                    return bitmap != null ? new DownloaderImage(bitmap) : null;
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    return null;
+                }
+            }
             try {
-                Snapshot snapshot = mDiskCache.get(mCacheKey);
+                Snapshot snapshot = mSnapshot;
+                if (snapshot == null) {
+                    ShardedDiskLruCache diskCache = awaitDiskCache();
+                    if (diskCache == null) {
+                        return null;
+                    }
+                    snapshot = diskCache.get(mCacheKey);
+                }
                 if (snapshot != null) {
                     try {
                         String string = snapshot.getString(0);
+                        if (snapshot.isPending()) {
+                            // Still being downloaded: decode as the bytes
+                            // arrive instead of starting a second download
+                            return decodePending(string, snapshot.getInputStream(1));
+                        }
+                        // Decode straight from the mapped cache file rather
+                        // than copying it through stream buffers
+                        ByteBuffer buffer = snapshot.map(1);
                         if("1".equals(string)) {
-                            Bitmap bitmap = BitmapFactory.decodeStream(snapshot.getInputStream(1));
+                            Bitmap bitmap = decodeBitmap(buffer, mBitmapPool);
+                            if (bitmap == null) {
+                                return null;
+                            }
+                            storeEncodedToMemory(mCacheKey, buffer);
                             return new DownloaderImage(bitmap);
                         } else {
-                            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                            int read;
-                            byte[] input = new byte[4096];
-                            while ( -1 != ( read = snapshot.getInputStream(1).read(input) ) ) {
-                                buffer.write( input, 0, read );
-                            }
-                            return new DownloaderImage(buffer.toByteArray());
+                            // The mapping outlives the snapshot
+                            return new DownloaderImage(buffer);
                         }
                     } catch (OutOfMemoryError e) {
                         Log.e(TAG, e.getMessage(), e);
                         return null;
+                    } finally {
+                        snapshot.close();
                     }
                 } else {
                     return null;
@@ -237,18 +962,28 @@ public class ImageCache {
             }
         }
 
-        @Override
-        protected void onPostExecute(DownloaderImage result) {
-            if (result != null) {
-                storeToMemory(result, mCacheKey);
-                mListener.onImageFound(ImageCache.this, result, mCacheKey, mDownloadRequest);
-            } else {
-                mListener.onImageNotFound(ImageCache.this, mCacheKey, mDownloadRequest);
+        private DownloaderImage decodePending(String type, InputStream inputStream) throws IOException {
+            if("1".equals(type)) {
+                // The decoder swallows read errors, such as a timed out wait
+                // for the download, and may return what it decoded so far
+                FailureRecordingInputStream recordingStream = new FailureRecordingInputStream(inputStream);
+                Bitmap bitmap = BitmapFactory.decodeStream(recordingStream);
+                if (recordingStream.mFailure != null) {
+                    if (bitmap != null) {
+                        bitmap.recycle();
+                    }
+                    throw recordingStream.mFailure;
+                }
+                return bitmap != null ? new DownloaderImage(bitmap) : null;
             }
+            return new DownloaderImage(readToBuffer(inputStream));
         }
-
     }
     
+    /**
+     * Opens the disk cache, then runs the lookups queued meanwhile. Runs on
+     * mDiskCacheExecutor.
+     */
     private void openDiskCache() {
         File directory;
 //        if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
@@ -263,10 +998,50 @@ public class ImageCache {
             versionCode = 0;
             Log.e(TAG, e.getMessage(), e);
         }
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        // Text journals written by earlier versions are migrated on open
+        options.binaryJournal = true;
+        // Scrolling re-reads the same entries constantly; only persist their
+        // order in batches
+        options.accessRecording = DiskLruCache.AccessRecording.BATCHED;
+        // Open from an index checkpoint instead of replaying the whole journal
+        options.checkpointInterval = DISK_CACHE_CHECKPOINT_INTERVAL;
+        // Keep thumbnails in a few large segment files rather than two files
+        // per image; caches stored one file per value are imported on open
+        options.packedStorage = true;
+        // Lookups for an image that is being downloaded read it as it is
+        // written instead of downloading it again
+        options.readWhileWrite = true;
+        // A lookup that gives up on a stalled download reports a miss, and
+        // the request goes to the network
+        options.pendingReadTimeoutMillis = DISK_CACHE_PENDING_READ_TIMEOUT;
+        // A screen of thumbnails commits many entries at once; flush their
+        // journal records together
+        options.durability = DiskLruCache.Durability.GROUP_COMMIT;
+        // Trim a tenth of the cache at a time rather than a few entries on
+        // every commit
+        options.lowWatermark = DISK_CACHE_LOW_WATERMARK;
+        // Keep the images that took long to download; scaled variants record
+        // no cost and go first, since they are derived again locally
+        options.evictionPolicy = DiskLruCache.EvictionPolicy.GDSF;
         try {
-            mDiskCache = DiskLruCache.open(directory, versionCode, DISK_CACHE_VALUE_COUNT, mDiskCacheSize);
+            long start = SystemClock.uptimeMillis();
+            mDiskCache = ShardedDiskLruCache.open(directory, versionCode, DISK_CACHE_VALUE_COUNT, mDiskCacheSize,
+                    mDiskCacheShardCount, options);
+            Log.d(TAG, "opened disk cache in " + (SystemClock.uptimeMillis() - start) + " ms");
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
         }
+
+        List<PendingDiskLookup> pendingDiskLookups;
+        synchronized (mDiskCacheLock) {
+            mDiskCacheStarting = false;
+            pendingDiskLookups = mPendingDiskLookups;
+            mPendingDiskLookups = new ArrayList<PendingDiskLookup>();
+            mDiskCacheLock.notifyAll();
+        }
+        for (PendingDiskLookup lookup : pendingDiskLookups) {
+            queryDiskCache(lookup.mCacheKey, lookup.mListener, lookup.mDownloadRequest);
+        }
     }
 }
@@ -0,0 +1,31 @@
+package com.applidium.shutterbug.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * Forwards memory pressure notifications to an {@link ImageCache}. Kept apart
+ * from {@link ImageCache} since {@link ComponentCallbacks2} only exists from
+ * Ice Cream Sandwich on.
+ */
+class ImageCacheMemoryCallbacks implements ComponentCallbacks2 {
+    private final ImageCache mImageCache;
+
+    ImageCacheMemoryCallbacks(ImageCache imageCache) {
+        mImageCache = imageCache;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        mImageCache.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        mImageCache.onLowMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -244,6 +244,22 @@ public class LruCache<K, V> {
         return 1;
     }
 
+    /**
+     * Sets the size of the cache, evicting entries if it shrinks.
+     *
+     * @param maxSize the new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
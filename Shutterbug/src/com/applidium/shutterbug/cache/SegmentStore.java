@@ -0,0 +1,446 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only storage of cache values in large segment files, used by
+ * {@link DiskLruCache} when it is opened with packed storage. Values are
+ * addressed by segment id and byte offset; the cache keeps that location in
+ * its entries and journal.
+ *
+ * <p>Values are only ever appended, through an {@link Appender} that has a
+ * writable segment to itself until it finishes, so that editors stream their
+ * values straight to disk without interleaving. A segment is sealed once it
+ * grows past the segment size. Overwritten and removed values leave garbage
+ * behind; a sealed segment whose live bytes drop below half of its length is
+ * a candidate for compaction, which copies its remaining values to a writable
+ * segment. When the cache is over its size, any segment with garbage that no
+ * appender holds is compacted. A sealed segment file is deleted once it holds
+ * no live bytes.
+ *
+ * <p>This class is not thread safe; the cache calls it while holding its lock.
+ * Only {@link Appender#write} and the other appending methods of an appender
+ * are called without the lock, by the thread owning the appender.
+ */
+final class SegmentStore implements Closeable {
+    static final String SEGMENT_FILE_PREFIX = "segment.";
+
+    private final File         directory;
+    private final long         segmentSize;
+    private final Map<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private long               nextId;
+
+    SegmentStore(File directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Records that {@code bytes} of segment {@code id} are referenced by an
+     * entry. Called while replaying the journal, before {@link #open}.
+     */
+    void addLive(long id, long bytes) {
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            segment = new Segment(id);
+            segments.put(id, segment);
+        }
+        segment.live += bytes;
+    }
+
+    /**
+     * Deletes segment files no entry refers to and seals the others. Writing
+     * resumes in a fresh segment so that bytes left by an interrupted append
+     * are never followed by live data.
+     */
+    void open() throws IOException {
+        long nextId = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long id = segmentId(file.getName());
+                if (id < 0) {
+                    continue;
+                }
+                Segment segment = segments.get(id);
+                if (segment == null || segment.live == 0) {
+                    segments.remove(id);
+                    file.delete();
+                } else {
+                    segment.length = file.length();
+                }
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+        for (Iterator<Segment> i = segments.values().iterator(); i.hasNext(); ) {
+            Segment segment = i.next();
+            nextId = Math.max(nextId, segment.id + 1);
+            if (segment.length == 0) {
+                // the file was deleted behind our back; see hasSegment()
+                i.remove();
+            }
+        }
+        this.nextId = nextId;
+    }
+
+    /** Returns true if segment {@code id} exists. */
+    boolean hasSegment(long id) {
+        return segments.containsKey(id);
+    }
+
+    private static long segmentId(String name) {
+        if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, SEGMENT_FILE_PREFIX + id);
+    }
+
+    /**
+     * Returns an appender writing to the newest writable segment no other
+     * appender holds, starting a new segment if there is none. The values
+     * appended until {@link #finishAppend} or {@link #abortAppend} land
+     * contiguously in that segment.
+     */
+    Appender beginAppend() throws IOException {
+        Segment writable = null;
+        for (Segment segment : segments.values()) {
+            if (segment.out != null && !segment.appending && segment.length < segmentSize) {
+                writable = segment;
+            }
+        }
+        if (writable == null) {
+            writable = new Segment(nextId);
+            writable.out = new FileOutputStream(segmentFile(nextId));
+            segments.put(nextId, writable);
+            nextId++;
+        }
+        writable.appending = true;
+        return new Appender(writable);
+    }
+
+    /**
+     * Releases the segment of {@code appender}, whose bytes are referenced by
+     * an entry from now on.
+     */
+    void finishAppend(Appender appender) {
+        endAppend(appender, appender.position - appender.start);
+    }
+
+    /**
+     * Releases the segment of {@code appender} after a failed or abandoned
+     * append. The bytes it appended are garbage. If a write failed, the file
+     * may end with a partial write, so the segment is sealed.
+     */
+    void abortAppend(Appender appender) {
+        endAppend(appender, 0);
+    }
+
+    private void endAppend(Appender appender, long liveBytes) {
+        Segment segment = appender.segment;
+        segment.length = appender.position;
+        segment.live += liveBytes;
+        segment.appending = false;
+        if (appender.failed || segment.length >= segmentSize) {
+            seal(segment);
+        }
+        deleteIfUnused(segment);
+    }
+
+    private void seal(Segment segment) {
+        if (segment.out != null) {
+            OutputStream out = segment.out;
+            segment.out = null;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Marks {@code bytes} of segment {@code id} as garbage, deleting the
+     * segment file when nothing in it is referenced anymore.
+     */
+    void release(long id, long bytes) {
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            return;
+        }
+        segment.live -= bytes;
+        deleteIfUnused(segment);
+    }
+
+    private void deleteIfUnused(Segment segment) {
+        if (segment.out == null && !segment.appending && segment.live <= 0) {
+            segments.remove(segment.id);
+            // open streams keep reading the unlinked file
+            segmentFile(segment.id).delete();
+        }
+    }
+
+    /**
+     * Returns the id of a sealed segment that is mostly garbage, or -1 if no
+     * segment needs compaction. If {@code reclaimAny}, returns the segment
+     * with the most garbage, however little, sealing it if it was still
+     * writable so that nothing is appended to it while it is compacted.
+     * Segments an appender holds are never returned.
+     */
+    long segmentToCompact(boolean reclaimAny) {
+        Segment candidate = null;
+        for (Segment segment : segments.values()) {
+            if (segment.appending) {
+                continue;
+            }
+            long garbage = segment.length - segment.live;
+            if (!reclaimAny && segment.out == null && segment.live * 2 < segment.length) {
+                return segment.id;
+            }
+            if (reclaimAny && garbage > 0
+                    && (candidate == null || garbage > candidate.length - candidate.live)) {
+                candidate = segment;
+            }
+        }
+        if (candidate == null) {
+            return -1;
+        }
+        seal(candidate);
+        // a segment holding only garbage goes away right here
+        deleteIfUnused(candidate);
+        return candidate.id;
+    }
+
+    /** Returns the number of bytes used by all segment files, garbage included. */
+    long totalLength() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.length;
+        }
+        return total;
+    }
+
+    /** Returns the number of bytes no entry refers to anymore. */
+    long garbage() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            garbage += segment.length - segment.live;
+        }
+        return garbage;
+    }
+
+    /**
+     * Returns the garbage in segments that appenders hold, which compaction
+     * cannot reclaim until they finish.
+     */
+    long unreclaimableGarbage() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.appending) {
+                garbage += segment.length - segment.live;
+            }
+        }
+        return garbage;
+    }
+
+    /**
+     * Returns a stream reading {@code length} bytes at {@code offset} of
+     * segment {@code id}.
+     */
+    InputStream openInputStream(long id, long offset, long length) throws IOException {
+        return window(openSegment(id), offset, length);
+    }
+
+    /** Opens the file of segment {@code id} for reading. */
+    FileInputStream openSegment(long id) throws FileNotFoundException {
+        return new FileInputStream(segmentFile(id));
+    }
+
+    /**
+     * Returns a stream reading {@code length} bytes at {@code offset} of
+     * {@code in}. Closes {@code in} if it cannot be positioned.
+     */
+    static InputStream window(FileInputStream in, long offset, long length) throws IOException {
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    File getSegmentFile(long id) {
+        return segmentFile(id);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            seal(segment);
+        }
+    }
+
+    private static final class Segment {
+        final long   id;
+        /** Bytes written to the segment file by finished appenders. */
+        long         length;
+        /** Bytes still referenced by an entry. */
+        long         live;
+        /** The stream appending to the file, or null once sealed. */
+        OutputStream out;
+        /** True while an appender holds this segment. */
+        boolean      appending;
+
+        Segment(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Appends bytes to one segment. An appender is used by a single thread at
+     * a time and must end with {@link #finishAppend} or {@link #abortAppend}.
+     */
+    final class Appender {
+        private final Segment      segment;
+        /** The segment's stream; a write fails once close() closed it. */
+        private final OutputStream out;
+        private final long         start;
+        private long               position;
+        private boolean            failed;
+
+        private Appender(Segment segment) {
+            this.segment = segment;
+            this.out = segment.out;
+            this.start = segment.length;
+            this.position = segment.length;
+        }
+
+        /** Returns the id of the segment this appender writes to. */
+        long segmentId() {
+            return segment.id;
+        }
+
+        /** Returns the offset in the segment of the next appended byte. */
+        long position() {
+            return position;
+        }
+
+        File getFile() {
+            return segmentFile(segment.id);
+        }
+
+        /** Appends {@code length} bytes of {@code data}. */
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (failed) {
+                throw new IOException("segment write failed");
+            }
+            try {
+                out.write(data, offset, length);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            position += length;
+        }
+
+        /** Appends a value stored at {@code offset} in segment {@code id}. */
+        void appendCopy(long id, long offset, long length) throws IOException {
+            InputStream in = openInputStream(id, offset, length);
+            try {
+                copy(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        /** Appends the contents of {@code file} and returns its length. */
+        long appendFile(File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                return copy(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        private long copy(InputStream in) throws IOException {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                write(buffer, 0, count);
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /** Reads a window of a segment file and reports end of stream after it. */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read != -1) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.applidium.shutterbug.cache.DiskLruCache.Editor;
+import com.applidium.shutterbug.cache.DiskLruCache.Options;
+import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+
+/**
+ * A disk cache that splits its keys across several independent
+ * {@link DiskLruCache} segments. Each segment lives in its own sub-directory
+ * with its own journal, LRU map and lock, so lookups and commits on keys that
+ * land in different segments do not contend with each other.
+ *
+ * <p>The total size budget is divided evenly between the segments, so the sum
+ * of all segment sizes never exceeds the size the cache was opened with. Keys
+ * are assigned to a segment by hash, which spreads them evenly as long as the
+ * keys themselves are well distributed (the cache keys built by
+ * {@code ShutterbugManager} are digests).
+ *
+ * <p>A cache opened with a single segment uses {@code directory} directly, so
+ * it reads and writes the same files as a plain {@link DiskLruCache}.
+ *
+ * <p>The number of segments is recorded in {@code directory}. Keys land in
+ * other segments once it changes, so opening the cache with another number
+ * of segments deletes what the previous layout stored.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+    static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    static final String SHARD_COUNT_FILE = "shards";
+    static final String SHARD_COUNT_FILE_TMP = "shards.tmp";
+
+    private final File           directory;
+    private final long           maxSize;
+    private final DiskLruCache[] shards;
+
+    private ShardedDiskLruCache(File directory, long maxSize, DiskLruCache[] shards) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.shards = shards;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store,
+     *     shared between all segments
+     * @param shardCount the number of independent segments. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int shardCount) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, shardCount, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. Every segment is opened with {@code options}.
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int shardCount, Options options) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        if (maxSize < shardCount) {
+            throw new IllegalArgumentException("maxSize < shardCount");
+        }
+
+        directory.mkdirs();
+        if (readShardCount(directory) != shardCount) {
+            deleteLayouts(directory);
+            writeShardCount(directory, shardCount);
+        }
+
+        DiskLruCache[] shards = new DiskLruCache[shardCount];
+        if (shardCount == 1) {
+            shards[0] = DiskLruCache.open(directory, appVersion, valueCount, maxSize, options);
+        } else {
+            // Give the remainder to the first segments so the budgets add up
+            // to exactly maxSize
+            long shardSize = maxSize / shardCount;
+            long remainder = maxSize % shardCount;
+            try {
+                for (int i = 0; i < shardCount; i++) {
+                    File shardDirectory = new File(directory, SHARD_DIRECTORY_PREFIX + i);
+                    long size = shardSize + (i < remainder ? 1 : 0);
+                    shards[i] = DiskLruCache.open(shardDirectory, appVersion, valueCount, size, options);
+                }
+            } catch (IOException e) {
+                closeAll(shards);
+                throw e;
+            }
+        }
+        return new ShardedDiskLruCache(directory, maxSize, shards);
+    }
+
+    /**
+     * Returns the number of segments of the cache in {@code directory}, or 0
+     * if it is unknown. Caches written before the number was recorded have
+     * as many segments as segment directories, or a single one if there are
+     * none.
+     */
+    private static int readShardCount(File directory) {
+        File file = new File(directory, SHARD_COUNT_FILE);
+        if (file.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                return Integer.parseInt(reader.readLine());
+            } catch (IOException e) {
+                return 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+        int shardDirectoryCount = shardDirectories(directory).size();
+        return shardDirectoryCount > 0 ? shardDirectoryCount : 1;
+    }
+
+    private static void writeShardCount(File directory, int shardCount) throws IOException {
+        File file = new File(directory, SHARD_COUNT_FILE);
+        File tmp = new File(directory, SHARD_COUNT_FILE_TMP);
+        Writer writer = new FileWriter(tmp);
+        try {
+            writer.write(shardCount + "\n");
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Deletes the values stored in {@code directory} with any number of
+     * segments: the files of a single segment in the directory itself, which
+     * may hold other files, and the segment directories, which only hold the
+     * files of their segment.
+     */
+    private static void deleteLayouts(File directory) {
+        DiskLruCache.deleteCacheFiles(directory);
+        for (File shardDirectory : shardDirectories(directory)) {
+            File[] files = shardDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            shardDirectory.delete();
+        }
+    }
+
+    private static List<File> shardDirectories(File directory) {
+        List<File> shardDirectories = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith(SHARD_DIRECTORY_PREFIX)) {
+                    shardDirectories.add(file);
+                }
+            }
+        }
+        return shardDirectories;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void closeAll(DiskLruCache[] shards) {
+        for (DiskLruCache shard : shards) {
+            if (shard != null) {
+                try {
+                    shard.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private DiskLruCache shardFor(String key) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        // Spread the hash bits before reducing so that keys sharing a prefix
+        // do not cluster in a single segment
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return shards[(h & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable.
+     */
+    public Snapshot get(String key) throws IOException {
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Returns snapshots of the entries named {@code keys} that exist and are
+     * readable, taking each segment's lock once. The caller must close every
+     * returned snapshot.
+     */
+    public Map<String, Snapshot> getAll(List<String> keys) throws IOException {
+        if (shards.length == 1) {
+            return shards[0].getAll(keys);
+        }
+        Map<DiskLruCache, List<String>> keysByShard = new HashMap<DiskLruCache, List<String>>();
+        for (String key : keys) {
+            DiskLruCache shard = shardFor(key);
+            List<String> shardKeys = keysByShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<String>();
+                keysByShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+        Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+        try {
+            for (Map.Entry<DiskLruCache, List<String>> shardKeys : keysByShard.entrySet()) {
+                snapshots.putAll(shardKeys.getKey().getAll(shardKeys.getValue()));
+            }
+        } catch (IOException e) {
+            DiskLruCache.closeAll(snapshots.values());
+            throw e;
+        }
+        return snapshots;
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public Editor edit(String key) throws IOException {
+        return shardFor(key).edit(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of segments keys are spread across.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data, summed over all segments.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache, summed over all segments.
+     */
+    public long size() {
+        long size = 0;
+        for (DiskLruCache shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of journal bytes that deferred access recording
+     * avoided writing, summed over all segments.
+     */
+    public long journalBytesSaved() {
+        long saved = 0;
+        for (DiskLruCache shard : shards) {
+            saved += shard.journalBytesSaved();
+        }
+        return saved;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return shards[0].isClosed();
+    }
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    public void flush() throws IOException {
+        for (DiskLruCache shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (DiskLruCache shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values, in every segment.
+     */
+    public void delete() throws IOException {
+        for (DiskLruCache shard : shards) {
+            shard.delete();
+        }
+    }
+}
@@ -2,10 +2,16 @@ package com.applidium.shutterbug.downloader;
 
 import android.graphics.Bitmap;
 
+import java.nio.ByteBuffer;
+
 public class DownloaderImage {
-    private Bitmap mBitmap;
-    private byte[] mMovie;
-    private String mMimeType;
+    private Bitmap              mBitmap;
+    private ByteBuffer          mMovie;
+    private String              mMimeType;
+    // Uses of the image, such as the memory cache or a listener displaying
+    // it, that keep its bitmap from being decoded into again
+    private int                 mUseCount;
+    private boolean             mUnused;
 
     public DownloaderImage(Bitmap bitmap) {
         mBitmap = bitmap;
@@ -17,15 +23,96 @@ public class DownloaderImage {
     }
 
     public DownloaderImage(byte[] movieBytes) {
-        mMovie = movieBytes;
+        mMovie = ByteBuffer.wrap(movieBytes);
+    }
+
+    /**
+     * @param movie the bytes of the movie, from its position to its limit.
+     *            May be mapped from a cache file, so that the bytes stay
+     *            outside of the Java heap.
+     */
+    public DownloaderImage(ByteBuffer movie) {
+        mMovie = movie.slice();
     }
 
     public boolean isBitmap() {
         return mBitmap != null;
     }
 
+    /**
+     * Returns a copy of the movie bytes on the Java heap, or null if this
+     * image is a bitmap. Prefer {@link #getMovieBuffer()} for movies held
+     * outside of the heap.
+     */
     public byte[] getMovieBytes() {
-        return mMovie;
+        ByteBuffer movie = mMovie;
+        if (movie == null) {
+            return null;
+        }
+        if (movie.hasArray() && movie.arrayOffset() == 0 && movie.array().length == movie.capacity()) {
+            return movie.array();
+        }
+        byte[] bytes = new byte[movie.capacity()];
+        movie.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of the movie bytes, or null if this image is a
+     * bitmap.
+     */
+    public ByteBuffer getMovieBuffer() {
+        ByteBuffer movie = mMovie;
+        return movie != null ? movie.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Returns the number of movie bytes, or 0 if this image is a bitmap.
+     */
+    public int getMovieByteCount() {
+        ByteBuffer movie = mMovie;
+        return movie != null ? movie.capacity() : 0;
+    }
+
+    /**
+     * Returns true if the movie bytes are held outside of the Java heap,
+     * mapped from a cache file. Buffers of
+     * {@link ByteBuffer#allocateDirect} are not created for movies: on
+     * Android they are backed by a Java heap array.
+     */
+    public boolean isMovieOffHeap() {
+        ByteBuffer movie = mMovie;
+        return movie != null && movie.isDirect();
+    }
+
+    /**
+     * Counts a use of this image that lasts until the matching
+     * {@link #release()}. Returns false, counting nothing, if every earlier
+     * use was already released and its bitmap may have been decoded into
+     * since.
+     */
+    public synchronized boolean retain() {
+        if (mUnused) {
+            return false;
+        }
+        mUseCount++;
+        return true;
+    }
+
+    /**
+     * Ends a use counted by {@link #retain()}. Returns true if it was the
+     * last one of a bitmap, which the caller may then pool: nothing displays
+     * it anymore.
+     */
+    public synchronized boolean release() {
+        if (mUseCount == 0) {
+            throw new IllegalStateException("release() without retain()");
+        }
+        if (--mUseCount > 0) {
+            return false;
+        }
+        mUnused = true;
+        return isBitmap();
     }
 
     public Bitmap getBitmap() {
@@ -1,9 +1,7 @@
 package com.applidium.shutterbug.downloader;
 
-import android.os.AsyncTask;
-import android.os.Build;
-
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.RequestScheduler;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
@@ -14,6 +12,10 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class ShutterbugDownloader {
     public interface ShutterbugDownloaderListener {
@@ -27,7 +29,7 @@ public class ShutterbugDownloader {
     private byte[]                             mImageData;
     private DownloadRequest                    mDownloadRequest;
     private final static int                   TIMEOUT = 30000;
-    private AsyncTask<Void, Void, DownloaderInputStream> mCurrentTask;
+    private FutureTask<DownloaderInputStream>  mCurrentTask;
 
     public ShutterbugDownloader(String url, ShutterbugDownloaderListener listener, DownloadRequest downloadRequest) {
         mUrl = url;
@@ -52,10 +54,18 @@ public class ShutterbugDownloader {
     }
 
     public void start() {
-        mCurrentTask = new AsyncTask<Void, Void, DownloaderInputStream>() {
+        start(RequestScheduler.getDefault().downloadExecutorFor(DownloadRequest.PRIORITY_NORMAL));
+    }
+
+    /**
+     * Starts downloading on {@code executor}. The listener is called on the
+     * thread that downloaded, unless the download was canceled.
+     */
+    public void start(Executor executor) {
+        mCurrentTask = new FutureTask<DownloaderInputStream>(new Callable<DownloaderInputStream>() {
 
             @Override
-            protected DownloaderInputStream doInBackground(Void... params) {
+            public DownloaderInputStream call() {
                 HttpGet request = new HttpGet(mUrl);
                 request.setHeader("Content-Type", "application/x-www-form-urlencoded");
 
@@ -82,11 +92,21 @@ public class ShutterbugDownloader {
                 }
                 return null;
             }
+        }) {
 
             @Override
-            protected void onPostExecute(DownloaderInputStream inputStream) {
+            protected void done() {
                 if (isCancelled()) {
-                    inputStream = null;
+                    return;
+                }
+
+                DownloaderInputStream inputStream = null;
+                try {
+                    inputStream = get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
                 }
 
                 if (inputStream != null) {
@@ -97,13 +117,7 @@ public class ShutterbugDownloader {
             }
 
         };
-        // AsyncTask was changed in Honeycomb to execute in serial by default, at which time
-        // executeOnExecutor was added to specify parallel execution.
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            mCurrentTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        } else {
-            mCurrentTask.execute();
-        }
+        executor.execute(mCurrentTask);
     }
 
     public void cancel() {
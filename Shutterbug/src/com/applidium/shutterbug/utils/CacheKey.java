@@ -0,0 +1,174 @@
+package com.applidium.shutterbug.utils;
+
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The 128-bit MD5 digest identifying an image at a given size in the caches,
+ * computed from a cache key prefix and the maximum width and height. Its
+ * string form is 32 lower-case hex digits.
+ *
+ * <p>Digests are computed with a {@link MessageDigest} and buffers kept per
+ * thread, so that computing a key only allocates the key itself.
+ */
+public final class CacheKey {
+    private static final Charset UTF_8      = Charset.forName("UTF-8");
+    private static final char[]  HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Hasher> HASHER = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    private final long mHigh;
+    private final long mLow;
+    private String     mString;
+
+    public CacheKey(long high, long low) {
+        mHigh = high;
+        mLow = low;
+    }
+
+    /**
+     * Returns the key of the image with the given prefix, scaled to fit
+     * {@code maxWidth} by {@code maxHeight}, 0 meaning unbounded.
+     */
+    public static CacheKey of(String prefix, int maxWidth, int maxHeight) {
+        return of(encodePrefix(prefix), maxWidth, maxHeight);
+    }
+
+    /**
+     * Like {@link #of(String, int, int)}, with the prefix already encoded by
+     * {@link #encodePrefix}.
+     */
+    public static CacheKey of(byte[] encodedPrefix, int maxWidth, int maxHeight) {
+        return HASHER.get().hash(encodedPrefix, maxWidth, maxHeight);
+    }
+
+    /**
+     * Returns the UTF-8 bytes of {@code prefix}, to be kept by callers that
+     * compute keys of the same prefix repeatedly.
+     */
+    public static byte[] encodePrefix(String prefix) {
+        return prefix.getBytes(UTF_8);
+    }
+
+    public long getHigh() {
+        return mHigh;
+    }
+
+    public long getLow() {
+        return mLow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        // The bits of a digest are already evenly spread
+        return (int) mLow;
+    }
+
+    /**
+     * Returns the 32 hex digits of this key, the form the caches store.
+     */
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            char[] chars = new char[32];
+            for (int i = 0; i < 16; i++) {
+                chars[i] = HEX_DIGITS[(int) (mHigh >>> (60 - 4 * i)) & 0xf];
+                chars[16 + i] = HEX_DIGITS[(int) (mLow >>> (60 - 4 * i)) & 0xf];
+            }
+            string = new String(chars);
+            mString = string;
+        }
+        return string;
+    }
+
+    private static class Hasher {
+        // "w=" and "&h=" followed by up to 11 characters each
+        private final byte[]        mSuffix = new byte[27];
+        private final byte[]        mDigest = new byte[16];
+        private final MessageDigest mMessageDigest;
+
+        Hasher() {
+            try {
+                mMessageDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        CacheKey hash(byte[] encodedPrefix, int maxWidth, int maxHeight) {
+            int length = 0;
+            mSuffix[length++] = 'w';
+            mSuffix[length++] = '=';
+            length = appendInt(maxWidth, length);
+            mSuffix[length++] = '&';
+            mSuffix[length++] = 'h';
+            mSuffix[length++] = '=';
+            length = appendInt(maxHeight, length);
+
+            mMessageDigest.update(encodedPrefix);
+            mMessageDigest.update(mSuffix, 0, length);
+            try {
+                mMessageDigest.digest(mDigest, 0, mDigest.length);
+            } catch (DigestException e) {
+                throw new AssertionError(e);
+            }
+            return new CacheKey(readLong(0), readLong(8));
+        }
+
+        private int appendInt(int value, int offset) {
+            if (value == Integer.MIN_VALUE) {
+                // Can't be negated
+                byte[] digits = Integer.toString(value).getBytes(UTF_8);
+                System.arraycopy(digits, 0, mSuffix, offset, digits.length);
+                return offset + digits.length;
+            }
+            if (value < 0) {
+                mSuffix[offset++] = '-';
+                value = -value;
+            }
+            int end = offset + digitCount(value);
+            for (int i = end - 1; i >= offset; i--) {
+                mSuffix[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return end;
+        }
+
+        private static int digitCount(int value) {
+            int count = 1;
+            while (value >= 10) {
+                value /= 10;
+                count++;
+            }
+            return count;
+        }
+
+        private long readLong(int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (mDigest[offset + i] & 0xffL);
+            }
+            return value;
+        }
+    }
+}
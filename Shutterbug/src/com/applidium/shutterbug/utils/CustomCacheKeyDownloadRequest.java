@@ -1,5 +1,7 @@
 package com.applidium.shutterbug.utils;
 
+import java.util.concurrent.Executor;
+
 public class CustomCacheKeyDownloadRequest extends DownloadRequest {
 
     private CustomCacheKeyObject object;
@@ -9,7 +11,18 @@ public class CustomCacheKeyDownloadRequest extends DownloadRequest {
         this.object = object;
     }
 
+    public CustomCacheKeyDownloadRequest(CustomCacheKeyObject object, int maxWidth, int maxHeight, ShutterbugManager.ShutterbugManagerListener listener,
+            Executor callbackExecutor) {
+        super(object.getUrl(), maxWidth, maxHeight, listener, callbackExecutor);
+        this.object = object;
+    }
+
     public String getCacheKeyPrefix() {
         return object.getCustomCacheKeyPrefix();
     }
+
+    @Override
+    protected byte[] getCacheKeyPrefixBytes() {
+        return object.getCustomCacheKeyPrefixBytes();
+    }
 }
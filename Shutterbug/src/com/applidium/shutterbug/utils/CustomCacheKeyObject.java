@@ -3,6 +3,8 @@ package com.applidium.shutterbug.utils;
 public class CustomCacheKeyObject {
     protected String url;
     protected String customCacheKeyPrefix;
+    private String   encodedCacheKeyPrefix;
+    private byte[]   encodedCacheKeyPrefixBytes;
 
     public CustomCacheKeyObject(String url, String customCacheKeyPrefix) {
         this.url = url;
@@ -16,4 +18,19 @@ public class CustomCacheKeyObject {
     public String getCustomCacheKeyPrefix() {
         return customCacheKeyPrefix;
     }
+
+    /**
+     * Returns the UTF-8 bytes of {@link #getCustomCacheKeyPrefix()}, encoded
+     * again only if the prefix changes.
+     */
+    byte[] getCustomCacheKeyPrefixBytes() {
+        String prefix = getCustomCacheKeyPrefix();
+        synchronized (this) {
+            if (prefix != encodedCacheKeyPrefix) {
+                encodedCacheKeyPrefixBytes = CacheKey.encodePrefix(prefix);
+                encodedCacheKeyPrefix = prefix;
+            }
+            return encodedCacheKeyPrefixBytes;
+        }
+    }
 }
@@ -1,20 +1,46 @@
 package com.applidium.shutterbug.utils;
 
+import android.os.SystemClock;
+
 import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
 
-public class DownloadRequest {
+import java.util.concurrent.Executor;
+
+public class DownloadRequest implements RequestRegistry.Request {
+    public static final int           PRIORITY_LOW    = -1;
+    public static final int           PRIORITY_NORMAL = 0;
+    public static final int           PRIORITY_HIGH   = 1;
+
     private String                    mUrl;
     private ShutterbugManagerListener mListener;
     private int                       mMaxWidth;
     private int                       mMaxHeight;
+    private Executor                  mCallbackExecutor;
+    private volatile boolean          mCanceled;
+    private int                       mPriority       = PRIORITY_NORMAL;
+    private long                      mDeadline;
+    // Computed on first use: the key at the requested size and of the original
+    private byte[]                    mCacheKeyPrefixBytes;
+    private CacheKey                  mCacheKey;
+    private CacheKey                  mOriginalCacheKey;
 
     public DownloadRequest(String url, int maxWidth, int maxHeight, ShutterbugManagerListener listener) {
+        this(url, maxWidth, maxHeight, listener, MainThreadExecutor.INSTANCE);
+    }
+
+    /**
+     * @param callbackExecutor runs the calls to {@code listener}
+     */
+    public DownloadRequest(String url, int maxWidth, int maxHeight, ShutterbugManagerListener listener,
+            Executor callbackExecutor) {
         mUrl = url;
         mListener = listener;
         mMaxWidth = maxWidth;
         mMaxHeight = maxHeight;
+        mCallbackExecutor = callbackExecutor;
     }
 
+    @Override
     public String getUrl() {
         return mUrl;
     }
@@ -23,10 +49,107 @@ public class DownloadRequest {
         return mUrl;
     }
 
+    /**
+     * Returns the UTF-8 bytes of {@link #getCacheKeyPrefix()}.
+     */
+    protected byte[] getCacheKeyPrefixBytes() {
+        byte[] bytes = mCacheKeyPrefixBytes;
+        if (bytes == null) {
+            bytes = CacheKey.encodePrefix(getCacheKeyPrefix());
+            mCacheKeyPrefixBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the key of this image scaled to fit {@code maxWidth} by
+     * {@code maxHeight}. The keys of the requested size and of the original,
+     * at 0 by 0, are only computed once.
+     */
+    public CacheKey getCacheKey(int maxWidth, int maxHeight) {
+        if (maxWidth == mMaxWidth && maxHeight == mMaxHeight) {
+            CacheKey cacheKey = mCacheKey;
+            if (cacheKey == null) {
+                cacheKey = CacheKey.of(getCacheKeyPrefixBytes(), maxWidth, maxHeight);
+                mCacheKey = cacheKey;
+            }
+            return cacheKey;
+        }
+        if (maxWidth == 0 && maxHeight == 0) {
+            CacheKey cacheKey = mOriginalCacheKey;
+            if (cacheKey == null) {
+                cacheKey = CacheKey.of(getCacheKeyPrefixBytes(), 0, 0);
+                mOriginalCacheKey = cacheKey;
+            }
+            return cacheKey;
+        }
+        return CacheKey.of(getCacheKeyPrefixBytes(), maxWidth, maxHeight);
+    }
+
+    @Override
     public ShutterbugManagerListener getListener() {
         return mListener;
     }
 
+    /**
+     * Returns the executor the listener is called on, the main thread unless
+     * another one was given.
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * Returns true once the request was canceled. A callback already handed
+     * to the callback executor checks it before calling the listener.
+     */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    void cancel() {
+        mCanceled = true;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Requests of higher priority are served first, and the newest first
+     * among requests of the same priority. Must be set before the request is
+     * passed to {@link ShutterbugManager#download(DownloadRequest)}.
+     *
+     * @param priority {@link #PRIORITY_NORMAL} by default, or any other value
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Gives up on the request if it hasn't been served by {@code deadline}:
+     * its listener is told it failed rather than waiting for queued work.
+     * Must be set before the request is passed to
+     * {@link ShutterbugManager#download(DownloadRequest)}.
+     *
+     * @param deadline in the {@link SystemClock#uptimeMillis()} time base, or
+     *            0, the default, for no deadline
+     */
+    public void setDeadline(long deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * Returns true if the request has a deadline and it has passed.
+     */
+    public boolean isExpired() {
+        return mDeadline != 0 && SystemClock.uptimeMillis() >= mDeadline;
+    }
+
     public int getMaxWidth() {
         return mMaxWidth;
     }
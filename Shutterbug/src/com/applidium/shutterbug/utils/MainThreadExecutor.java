@@ -0,0 +1,29 @@
+package com.applidium.shutterbug.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the main thread: right away when already on it, so that an
+ * image found in memory is shown before the next frame, and posted to the
+ * main looper otherwise.
+ */
+class MainThreadExecutor implements Executor {
+    static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private MainThreadExecutor() {
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            command.run();
+        } else {
+            mHandler.post(command);
+        }
+    }
+}
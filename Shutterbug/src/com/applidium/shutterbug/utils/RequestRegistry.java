@@ -0,0 +1,197 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The requests a {@link ShutterbugManager} is serving, indexed by request, by
+ * listener and by downloader so that registering, completing and canceling a
+ * request takes constant time whatever the number of outstanding requests.
+ *
+ * <p>A request is first looked up in the cache, then, on a miss, waits for a
+ * downloader shared by all the requests of the same URL. Once its lookup or
+ * download is over, it stays registered for its listener until the result is
+ * delivered on its callback executor, so that it can still be canceled until
+ * then. Requests are identified by their instance.
+ *
+ * <p>The registry can be used from any thread. Its methods only hold its lock
+ * while updating the indexes; listeners are called once they return.
+ *
+ * @param <R> the requests, {@link DownloadRequest} in {@link ShutterbugManager}
+ * @param <D> the downloaders, any object to be started and canceled by the
+ *            caller
+ */
+class RequestRegistry<R extends RequestRegistry.Request, D> {
+    /** What the registry needs of a request. */
+    interface Request {
+        String getUrl();
+
+        /** Returns the listener the request is canceled with. */
+        Object getListener();
+    }
+
+    /** Requests waiting for a cache lookup. */
+    private final Set<R>                        mCacheRequests      = new HashSet<R>();
+    /** Requests waiting for a download, with their downloader. */
+    private final Map<R, D>                     mDownloadRequests   = new HashMap<R, D>();
+    /** Requests waiting for each downloader, in registration order. */
+    private final Map<D, LinkedHashSet<R>>      mDownloaderRequests = new HashMap<D, LinkedHashSet<R>>();
+    /** The downloader of each URL being downloaded. */
+    private final Map<String, D>                mDownloaders        = new HashMap<String, D>();
+    /** Requests of each listener, until their result is delivered. */
+    private final Map<Object, Set<R>>           mListenerRequests   = new HashMap<Object, Set<R>>();
+
+    /**
+     * Registers {@code downloadRequest} as waiting for a cache lookup.
+     */
+    synchronized void addCacheRequest(R downloadRequest) {
+        if (mCacheRequests.add(downloadRequest)) {
+            addListenerRequest(downloadRequest);
+        }
+    }
+
+    /**
+     * Returns true if {@code downloadRequest} is waiting for a cache lookup,
+     * false if it was canceled.
+     */
+    synchronized boolean isCacheRequest(R downloadRequest) {
+        return mCacheRequests.contains(downloadRequest);
+    }
+
+    /**
+     * Ends the cache lookup of {@code downloadRequest}, whose result is then
+     * to be {@link #removeDeliveredRequest delivered}. Returns false if it
+     * was canceled meanwhile.
+     */
+    synchronized boolean removeCacheRequest(R downloadRequest) {
+        return mCacheRequests.remove(downloadRequest);
+    }
+
+    /**
+     * Ends the cache lookup of {@code downloadRequest} and registers it as
+     * waiting for the downloader of its URL, or for {@code newDownloader},
+     * which becomes the downloader of the URL, if there is none. Returns the
+     * downloader the request waits for, or null if it was canceled during
+     * its lookup; the caller starts the downloader if it is
+     * {@code newDownloader}.
+     */
+    synchronized D moveToDownload(R downloadRequest, D newDownloader) {
+        if (!mCacheRequests.remove(downloadRequest)) {
+            return null;
+        }
+        D downloader = mDownloaders.get(downloadRequest.getUrl());
+        if (downloader == null) {
+            downloader = newDownloader;
+            mDownloaders.put(downloadRequest.getUrl(), downloader);
+        }
+        LinkedHashSet<R> requests = mDownloaderRequests.get(downloader);
+        if (requests == null) {
+            requests = new LinkedHashSet<R>();
+            mDownloaderRequests.put(downloader, requests);
+        }
+        requests.add(downloadRequest);
+        mDownloadRequests.put(downloadRequest, downloader);
+        return downloader;
+    }
+
+    /**
+     * Unregisters {@code downloader} and returns the requests that were
+     * waiting for it, in registration order, whose results are then to be
+     * {@link #removeDeliveredRequest delivered}.
+     */
+    synchronized List<R> removeDownloader(D downloader) {
+        LinkedHashSet<R> requests = mDownloaderRequests.remove(downloader);
+        if (requests == null) {
+            // Every request was canceled, which unregistered it
+            return Collections.emptyList();
+        }
+        // A downloader serves the requests of a single URL
+        removeDownloaderOfUrl(requests.iterator().next().getUrl(), downloader);
+        for (R downloadRequest : requests) {
+            mDownloadRequests.remove(downloadRequest);
+        }
+        return new ArrayList<R>(requests);
+    }
+
+    /**
+     * Unregisters {@code downloadRequest} right before its result is
+     * delivered to its listener, on its callback executor. Returns false if
+     * it was canceled since its lookup or download ended, in which case the
+     * listener must not be called.
+     */
+    synchronized boolean removeDeliveredRequest(R downloadRequest) {
+        return removeListenerRequest(downloadRequest);
+    }
+
+    /**
+     * Unregisters every request of {@code listener}, including those whose
+     * result is not delivered yet, and adds them to {@code canceledRequests}.
+     * Returns the downloaders no request is waiting for anymore, which should
+     * be canceled.
+     */
+    synchronized List<D> cancel(Object listener, List<? super R> canceledRequests) {
+        Set<R> requests = mListenerRequests.remove(listener);
+        if (requests == null) {
+            return Collections.emptyList();
+        }
+        canceledRequests.addAll(requests);
+        List<D> idleDownloaders = new ArrayList<D>();
+        for (R downloadRequest : requests) {
+            if (mCacheRequests.remove(downloadRequest)) {
+                continue;
+            }
+            D downloader = mDownloadRequests.remove(downloadRequest);
+            if (downloader == null) {
+                continue;
+            }
+            LinkedHashSet<R> downloaderRequests = mDownloaderRequests.get(downloader);
+            downloaderRequests.remove(downloadRequest);
+            if (downloaderRequests.isEmpty()) {
+                mDownloaderRequests.remove(downloader);
+                removeDownloaderOfUrl(downloadRequest.getUrl(), downloader);
+                idleDownloaders.add(downloader);
+            }
+        }
+        return idleDownloaders;
+    }
+
+    /**
+     * Returns the number of requests waiting for a cache lookup or a
+     * download.
+     */
+    synchronized int size() {
+        return mCacheRequests.size() + mDownloadRequests.size();
+    }
+
+    private void removeDownloaderOfUrl(String url, D downloader) {
+        if (mDownloaders.get(url) == downloader) {
+            mDownloaders.remove(url);
+        }
+    }
+
+    private void addListenerRequest(R downloadRequest) {
+        Set<R> requests = mListenerRequests.get(downloadRequest.getListener());
+        if (requests == null) {
+            requests = new HashSet<R>();
+            mListenerRequests.put(downloadRequest.getListener(), requests);
+        }
+        requests.add(downloadRequest);
+    }
+
+    private boolean removeListenerRequest(R downloadRequest) {
+        Set<R> requests = mListenerRequests.get(downloadRequest.getListener());
+        if (requests == null || !requests.remove(downloadRequest)) {
+            return false;
+        }
+        if (requests.isEmpty()) {
+            mListenerRequests.remove(downloadRequest.getListener());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the lookups and decodes of requests, highest
+ * {@link DownloadRequest#getPriority() priority} first and, within a
+ * priority, newest first: after a fling, the rows now on screen are served
+ * before the ones that scrolled off.
+ *
+ * <p>Downloads have a pool of their own, highest priority first and, within
+ * a priority, oldest first: a download is never held back behind newer
+ * lookups and decodes, nor behind newer downloads that would leave it
+ * waiting with its work half done.
+ *
+ * <p>A task queued for a request that is canceled, as when a
+ * {@link com.applidium.shutterbug.FetchableImageView} is rebound, or whose
+ * deadline has passed is dropped instead of run. A {@link DroppableTask} is
+ * told, so that it can still report the miss; a {@link Future} is canceled.
+ *
+ * <p>Tasks complete on the scheduler's threads, never on the main thread:
+ * results reach listeners through the callback executor of their request.
+ */
+public class RequestScheduler {
+    private static final int         POOL_SIZE          = Runtime.getRuntime().availableProcessors() * 2 + 1;
+    private static final int         DOWNLOAD_POOL_SIZE = 4;
+    private static final int         KEEP_ALIVE         = 1;
+
+    private static RequestScheduler  sDefault;
+
+    /**
+     * A task that has to report that it will not run when its request is
+     * canceled or expired.
+     */
+    public interface DroppableTask extends Runnable {
+        /** Called on a scheduler thread instead of {@link #run()}. */
+        void onDropped();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mDownloadExecutor;
+    private final AtomicLong         mSequence     = new AtomicLong();
+    private final AtomicInteger      mDroppedCount = new AtomicInteger();
+
+    public RequestScheduler(int poolSize) {
+        this(poolSize, DOWNLOAD_POOL_SIZE);
+    }
+
+    public RequestScheduler(int poolSize, int downloadPoolSize) {
+        mExecutor = newExecutor(poolSize, "Shutterbug #");
+        mDownloadExecutor = newExecutor(downloadPoolSize, "Shutterbug download #");
+    }
+
+    private static ThreadPoolExecutor newExecutor(int poolSize, final String threadName) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, threadName + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the scheduler shared by the image cache and image managers.
+     */
+    public static synchronized RequestScheduler getDefault() {
+        if (sDefault == null) {
+            sDefault = new RequestScheduler(POOL_SIZE);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Returns an executor running tasks at the priority of
+     * {@code downloadRequest}, dropping them if it is canceled or expired by
+     * the time they would run. {@code downloadRequest} may be null for tasks
+     * of no request in particular.
+     */
+    public Executor executorFor(final DownloadRequest downloadRequest) {
+        if (downloadRequest == null) {
+            return executorFor(DownloadRequest.PRIORITY_NORMAL);
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mExecutor.execute(new Task(command, downloadRequest.getPriority(), downloadRequest, true));
+            }
+        };
+    }
+
+    /**
+     * Returns an executor running tasks at {@code priority}, never dropping
+     * them. For tasks shared by several requests, such as batch lookups.
+     */
+    public Executor executorFor(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mExecutor.execute(new Task(command, priority, null, true));
+            }
+        };
+    }
+
+    /**
+     * Returns an executor running downloads at {@code priority} on the
+     * download pool, never dropping them. A download is shared by every
+     * request of its URL and handles the stream it opens on its own thread.
+     */
+    public Executor downloadExecutorFor(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mDownloadExecutor.execute(new Task(command, priority, null, false));
+            }
+        };
+    }
+
+    /**
+     * Returns the number of tasks dropped without running.
+     */
+    public int droppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final Runnable        mCommand;
+        private final int             mPriority;
+        private final long            mSequence;
+        private final DownloadRequest mDownloadRequest;
+        private final boolean         mNewestFirst;
+
+        Task(Runnable command, int priority, DownloadRequest downloadRequest, boolean newestFirst) {
+            mCommand = command;
+            mPriority = priority;
+            mSequence = RequestScheduler.this.mSequence.getAndIncrement();
+            mDownloadRequest = downloadRequest;
+            mNewestFirst = newestFirst;
+        }
+
+        @Override
+        public void run() {
+            if (mDownloadRequest != null && (mDownloadRequest.isCanceled() || mDownloadRequest.isExpired())) {
+                mDroppedCount.incrementAndGet();
+                if (mCommand instanceof DroppableTask) {
+                    ((DroppableTask) mCommand).onDropped();
+                } else if (mCommand instanceof Future) {
+                    ((Future<?>) mCommand).cancel(false);
+                }
+                return;
+            }
+            mCommand.run();
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            // Newest first for lookups and decodes, oldest first for downloads
+            int oldestFirst = mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+            return mNewestFirst ? -oldestFirst : oldestFirst;
+        }
+    }
+}
@@ -3,10 +3,10 @@ package com.applidium.shutterbug.utils;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.util.Log;
 
+import com.applidium.shutterbug.cache.ByteBufferInputStream;
+import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
 import com.applidium.shutterbug.cache.ImageCache;
 import com.applidium.shutterbug.cache.ImageCache.ImageCacheListener;
 import com.applidium.shutterbug.downloader.DownloaderImage;
@@ -14,50 +14,64 @@ import com.applidium.shutterbug.downloader.DownloaderInputStream;
 import com.applidium.shutterbug.downloader.ShutterbugDownloader;
 import com.applidium.shutterbug.downloader.ShutterbugDownloader.ShutterbugDownloaderListener;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads images from the memory and disk caches or the network. Requests can
+ * be made and canceled from any thread; listeners are called on the main
+ * thread, or on the executor given with the request.
+ */
 public class ShutterbugManager implements ImageCacheListener, ShutterbugDownloaderListener {
 
 
+    /**
+     * Told the outcome of a request. An image delivered to
+     * {@link #onImageSuccess} may be handed back with {@link #release} once
+     * the listener stops displaying it, so that its bitmap can be decoded
+     * into again.
+     */
     public interface ShutterbugManagerListener {
         void onImageSuccess(ShutterbugManager imageManager, DownloaderImage downloaderImage, String url);
         void onImageFailure(ShutterbugManager imageManager, String url);
     }
 
+    private static final String               TAG                     = "ShutterbugManager";
+
     private static ShutterbugManager          sImageManager;
 
     private Context                           mContext;
     private ImageCache                        mImageCache;
-    private List<String>                      mFailedUrls             = new ArrayList<String>();
-    private List<ShutterbugManagerListener>   mCacheListeners         = new ArrayList<ShutterbugManagerListener>();
-    private List<String>                      mCacheUrls              = new ArrayList<String>();
-    private Map<String, ShutterbugDownloader> mDownloadersMap         = new HashMap<String, ShutterbugDownloader>();
-    private List<DownloadRequest>             mDownloadRequests       = new ArrayList<DownloadRequest>();
-    private List<ShutterbugManagerListener>   mDownloadImageListeners = new ArrayList<ShutterbugManagerListener>();
-    private List<ShutterbugDownloader>        mDownloaders            = new ArrayList<ShutterbugDownloader>();
-
-    final static private int                  LISTENER_NOT_FOUND      = -1;
+    private final Set<String>                 mFailedUrls             = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final RequestRegistry<DownloadRequest, ShutterbugDownloader> mRequests = new RequestRegistry<DownloadRequest, ShutterbugDownloader>();
+    // Max sizes of the scaled variants stored on disk, by cache key prefix
+    private Map<String, List<int[]>>          mCachedVariants         = new HashMap<String, List<int[]>>();
 
     public ShutterbugManager(Context context, int diskCacheSize) {
         mContext = context;
         mImageCache = ImageCache.getSharedImageCache(context, diskCacheSize);
     }
 
+    public ShutterbugManager(Context context, int diskCacheSize, int diskCacheShardCount) {
+        mContext = context;
+        mImageCache = ImageCache.getSharedImageCache(context, diskCacheSize, diskCacheShardCount);
+    }
+
     public ShutterbugManager(Context context) {
         mContext = context;
         mImageCache = ImageCache.getSharedImageCache(context);
     }
 
-    public static ShutterbugManager getSharedImageManager(Context context) {
+    public static synchronized ShutterbugManager getSharedImageManager(Context context) {
         if (sImageManager == null) {
             sImageManager = new ShutterbugManager(context);
         }
@@ -70,10 +84,22 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugDownload
      * @param context
      * @param diskCacheSize
      */
-    public static void setDiskCacheSize(Context context, int diskCacheSize) {
+    public static synchronized void setDiskCacheSize(Context context, int diskCacheSize) {
         sImageManager = new ShutterbugManager(context, diskCacheSize);
     }
 
+    /**
+     * Call this before ShutterbugManager (or FetchableImageView) is used.
+     *
+     * @param context
+     * @param diskCacheSize
+     * @param diskCacheShardCount number of independent disk cache segments,
+     *            see {@link ImageCache#getSharedImageCache(Context, int, int)}
+     */
+    public static synchronized void setDiskCacheSize(Context context, int diskCacheSize, int diskCacheShardCount) {
+        sImageManager = new ShutterbugManager(context, diskCacheSize, diskCacheShardCount);
+    }
+
     public ImageCache getImageCache() {
         return mImageCache;
     }
@@ -83,232 +109,487 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugDownload
     }
 
     public void download(final CustomCacheKeyObject object, int maxWidth, int maxHeight, ShutterbugManagerListener listener) {
-        if (object == null || listener == null || mFailedUrls.contains(object.getUrl())) {
+        download(object, maxWidth, maxHeight, listener, MainThreadExecutor.INSTANCE);
+    }
+
+    /**
+     * @param callbackExecutor runs the calls to {@code listener}
+     */
+    public void download(final CustomCacheKeyObject object, int maxWidth, int maxHeight, ShutterbugManagerListener listener,
+            Executor callbackExecutor) {
+        if (object == null) {
             return;
         }
 
-        mCacheListeners.add(listener);
-        mCacheUrls.add(object.getUrl());
-        CustomCacheKeyDownloadRequest downloadRequest = new CustomCacheKeyDownloadRequest(object, maxWidth, maxHeight, listener);
-        mImageCache.queryCache(getCacheKey(downloadRequest, maxWidth, maxHeight), this, downloadRequest);
+        download(new CustomCacheKeyDownloadRequest(object, maxWidth, maxHeight, listener, callbackExecutor));
     }
 
     public void download(String url, int maxWidth, int maxHeight, ShutterbugManagerListener listener) {
-        if (url == null || listener == null || mFailedUrls.contains(url)) {
+        download(url, maxWidth, maxHeight, listener, MainThreadExecutor.INSTANCE);
+    }
+
+    /**
+     * @param callbackExecutor runs the calls to {@code listener}
+     */
+    public void download(String url, int maxWidth, int maxHeight, ShutterbugManagerListener listener,
+            Executor callbackExecutor) {
+        download(new DownloadRequest(url, maxWidth, maxHeight, listener, callbackExecutor));
+    }
+
+    /**
+     * Serves {@code downloadRequest}, which may have a priority and a
+     * deadline set. It can be canceled with {@link #cancel} like the requests
+     * the other download methods make.
+     */
+    public void download(DownloadRequest downloadRequest) {
+        if (downloadRequest.getUrl() == null || downloadRequest.getListener() == null
+                || mFailedUrls.contains(downloadRequest.getUrl())) {
             return;
         }
 
-        mCacheListeners.add(listener);
-        mCacheUrls.add(url);
-        DownloadRequest downloadRequest = new DownloadRequest(url, maxWidth, maxHeight, listener);
-        mImageCache.queryCache(getCacheKey(downloadRequest, maxWidth, maxHeight), this, downloadRequest);
+        mRequests.addCacheRequest(downloadRequest);
+        mImageCache.queryCache(getCacheKey(downloadRequest, downloadRequest.getMaxWidth(), downloadRequest.getMaxHeight()),
+                this, downloadRequest);
     }
 
+    /**
+     * Returns the string form of the {@link CacheKey} of the image of
+     * {@code downloadRequest} scaled to fit {@code maxWidth} by
+     * {@code maxHeight}.
+     */
     public static String getCacheKey(DownloadRequest downloadRequest, int maxWidth, int maxHeight) {
-        try {
-            String key = downloadRequest.getCacheKeyPrefix() + "w=" + maxWidth + "&h=" + maxHeight;
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(key.getBytes("UTF-8"), 0, key.length());
-            return String.format("%x", new BigInteger(md.digest()));
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    private int getListenerIndex(ShutterbugManagerListener listener, String url) {
-        for (int index = 0; index < mCacheListeners.size(); index++) {
-            if (mCacheListeners.get(index) == listener && mCacheUrls.get(index).equals(url)) {
-                return index;
-            }
-        }
-        return LISTENER_NOT_FOUND;
+        return downloadRequest.getCacheKey(maxWidth, maxHeight).toString();
     }
 
     @Override
     public void onImageFound(ImageCache imageCache, DownloaderImage downloaderImage, String key, DownloadRequest downloadRequest) {
-        final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
-
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
+        if (!mRequests.removeCacheRequest(downloadRequest)) {
             // Request has since been canceled
+            mImageCache.release(downloaderImage);
             return;
         }
 
-        listener.onImageSuccess(this, downloaderImage, url);
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
+        dispatchSuccess(downloadRequest, downloaderImage, downloadRequest.getUrl());
     }
 
     @Override
     public void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest) {
-        final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
-
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
+        if (!mRequests.isCacheRequest(downloadRequest)) {
             // Request has since been canceled
             return;
         }
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
+
+        List<String> sourceKeys = getVariantSourceKeys(downloadRequest);
+        if (!sourceKeys.isEmpty() && !downloadRequest.isExpired()) {
+            // A larger variant or the original may be cached: scale it down
+            // before going to the network. The request stays registered for
+            // the cache meanwhile so that it can be canceled.
+            RequestScheduler.getDefault().executorFor(downloadRequest)
+                    .execute(new VariantDerivationTask(key, downloadRequest, sourceKeys));
+            return;
+        }
+        startDownload(downloadRequest);
+    }
+
+    /**
+     * Hands {@code downloadRequest} over from its cache lookup to a download,
+     * unless it was canceled meanwhile.
+     */
+    private void startDownload(DownloadRequest downloadRequest) {
+        if (downloadRequest.isExpired()) {
+            // Not worth going to the network anymore
+            if (mRequests.removeCacheRequest(downloadRequest)) {
+                dispatchFailure(downloadRequest, downloadRequest.getUrl());
+            }
+            return;
+        }
 
         // Share the same downloader for identical URLs so we don't download the
         // same URL several times
-        ShutterbugDownloader downloader = mDownloadersMap.get(url);
-        if (downloader == null) {
-            downloader = new ShutterbugDownloader(url, this, downloadRequest);
-            downloader.start();
-            mDownloadersMap.put(url, downloader);
-        }
-        mDownloadRequests.add(downloadRequest);
-        mDownloadImageListeners.add(listener);
-        mDownloaders.add(downloader);
+        ShutterbugDownloader newDownloader = new ShutterbugDownloader(downloadRequest.getUrl(), this, downloadRequest);
+        if (mRequests.moveToDownload(downloadRequest, newDownloader) == newDownloader) {
+            // Shared with later requests of the URL: never dropped, canceled
+            // once no request waits for it
+            newDownloader.start(RequestScheduler.getDefault().downloadExecutorFor(downloadRequest.getPriority()));
+        }
+    }
+
+    /**
+     * Calls the listener of {@code downloadRequest} on its callback executor,
+     * unless the request is canceled by then: the request stays registered
+     * for its listener until this call, so canceling it in between works.
+     * {@code downloaderImage} must be retained for the request; the listener
+     * then holds that use.
+     */
+    private void dispatchSuccess(final DownloadRequest downloadRequest, final DownloaderImage downloaderImage,
+            final String url) {
+        downloadRequest.getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequests.removeDeliveredRequest(downloadRequest)) {
+                    downloadRequest.getListener().onImageSuccess(ShutterbugManager.this, downloaderImage, url);
+                } else {
+                    mImageCache.release(downloaderImage);
+                }
+            }
+        });
+    }
+
+    private void dispatchFailure(final DownloadRequest downloadRequest, final String url) {
+        downloadRequest.getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequests.removeDeliveredRequest(downloadRequest)) {
+                    downloadRequest.getListener().onImageFailure(ShutterbugManager.this, url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cache keys a scaled request could be derived from: the
+     * cached variants at least as large as the request, smallest first, then
+     * the original. Returns an empty list for a request of the original.
+     */
+    private List<String> getVariantSourceKeys(DownloadRequest downloadRequest) {
+        List<String> keys = new ArrayList<String>();
+        final int maxWidth = downloadRequest.getMaxWidth();
+        final int maxHeight = downloadRequest.getMaxHeight();
+        if (maxWidth == 0 || maxHeight == 0) {
+            return keys;
+        }
+        List<int[]> larger = new ArrayList<int[]>();
+        synchronized (mCachedVariants) {
+            List<int[]> variants = mCachedVariants.get(downloadRequest.getCacheKeyPrefix());
+            if (variants != null) {
+                for (int[] variant : variants) {
+                    if (variant[0] >= maxWidth && variant[1] >= maxHeight
+                            && (variant[0] != maxWidth || variant[1] != maxHeight)) {
+                        larger.add(variant);
+                    }
+                }
+            }
+        }
+        Collections.sort(larger, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                long lhsArea = (long) lhs[0] * lhs[1];
+                long rhsArea = (long) rhs[0] * rhs[1];
+                return lhsArea < rhsArea ? -1 : (lhsArea == rhsArea ? 0 : 1);
+            }
+        });
+        for (int[] variant : larger) {
+            keys.add(getCacheKey(downloadRequest, variant[0], variant[1]));
+        }
+        keys.add(getCacheKey(downloadRequest, 0, 0));
+        return keys;
+    }
+
+    private void recordCachedVariant(DownloadRequest downloadRequest, int maxWidth, int maxHeight) {
+        synchronized (mCachedVariants) {
+            List<int[]> variants = mCachedVariants.get(downloadRequest.getCacheKeyPrefix());
+            if (variants == null) {
+                variants = new ArrayList<int[]>();
+                mCachedVariants.put(downloadRequest.getCacheKeyPrefix(), variants);
+            }
+            for (int[] variant : variants) {
+                if (variant[0] == maxWidth && variant[1] == maxHeight) {
+                    return;
+                }
+            }
+            variants.add(new int[] { maxWidth, maxHeight });
+        }
+    }
+
+    /**
+     * Decodes the image cached in {@code snapshot}, scaled down to fit the max
+     * size of {@code downloadRequest}. A scaled result is also stored on disk
+     * under {@code cacheKey}.
+     *
+     * @param mimeType the type of the image, or null to detect it
+     */
+    private DownloaderImage decodeSnapshot(Snapshot snapshot, String mimeType, DownloadRequest downloadRequest,
+            String cacheKey) throws IOException {
+        final int maxWidth = downloadRequest.getMaxWidth();
+        final int maxHeight = downloadRequest.getMaxHeight();
+        ByteBuffer encoded = snapshot.map(1);
+        if(mimeType == null ? "0".equals(snapshot.getString(0)) : ImageCache.MIMETYPE_GIF.equals(mimeType)) {
+            // The mapping outlives the snapshot
+            return new DownloaderImage(encoded);
+        }
+
+        // Read the bounds first so that a large image is subsampled while
+        // decoding instead of being decoded at full size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(encoded.duplicate()), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        if (mimeType == null) {
+            mimeType = options.outMimeType;
+        }
+        int[] size = fitSize(options.outWidth, options.outHeight, maxWidth, maxHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= size[0]
+                && options.outHeight / (options.inSampleSize * 2) >= size[1]) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = ImageCache.decodeBitmap(encoded, mImageCache.getBitmapPool(), options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        if (bitmap.getWidth() != size[0] || bitmap.getHeight() != size[1]) {
+            Bitmap sampled = bitmap;
+            bitmap = Bitmap.createScaledBitmap(sampled, size[0], size[1], true);
+            if (bitmap != sampled) {
+                // Only needed for scaling
+                mImageCache.getBitmapPool().put(sampled);
+            }
+        }
+        DownloaderImage downloaderImage = new DownloaderImage(bitmap, mimeType);
+        if (size[0] != options.outWidth || size[1] != options.outHeight) {
+            // The cached image is larger than this variant
+            if (mImageCache.storeToDisk(downloaderImage, cacheKey) != null) {
+                recordCachedVariant(downloadRequest, maxWidth, maxHeight);
+            }
+        }
+        return downloaderImage;
+    }
+
+    /**
+     * Scales a cached variant or original down to the size of a request that
+     * missed the cache, falling back to a download if none of them is cached
+     * anymore.
+     */
+    private class VariantDerivationTask implements RequestScheduler.DroppableTask {
+        private String          mCacheKey;
+        private DownloadRequest mDownloadRequest;
+        private List<String>    mSourceKeys;
+
+        VariantDerivationTask(String cacheKey, DownloadRequest downloadRequest, List<String> sourceKeys) {
+            mCacheKey = cacheKey;
+            mDownloadRequest = downloadRequest;
+            mSourceKeys = sourceKeys;
+        }
+
+        @Override
+        public void run() {
+            complete(derive());
+        }
+
+        @Override
+        public void onDropped() {
+            complete(null);
+        }
+
+        private DownloaderImage derive() {
+            for (String sourceKey : mSourceKeys) {
+                Snapshot snapshot = mImageCache.getFromDisk(sourceKey);
+                if (snapshot == null) {
+                    continue;
+                }
+                if (snapshot.isPending()) {
+                    // Still being downloaded; the download notifies its own listeners
+                    snapshot.close();
+                    continue;
+                }
+                try {
+                    DownloaderImage downloaderImage = decodeSnapshot(snapshot, null, mDownloadRequest, mCacheKey);
+                    if (downloaderImage != null) {
+                        // Retained for the request, then for the memory cache
+                        downloaderImage.retain();
+                        mImageCache.storeToMemory(downloaderImage, mCacheKey);
+                        return downloaderImage;
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, e.getMessage(), e);
+                } finally {
+                    snapshot.close();
+                }
+            }
+            return null;
+        }
+
+        private void complete(DownloaderImage downloaderImage) {
+            if (downloaderImage != null) {
+                onImageFound(mImageCache, downloaderImage, mCacheKey, mDownloadRequest);
+                return;
+            }
+            startDownload(mDownloadRequest);
+        }
     }
 
     @Override
     public void onImageDownloadSuccess(final ShutterbugDownloader downloader, final DownloaderInputStream inputStream,
             final DownloadRequest downloadRequest) {
-        InputStreamHandlingTask task = new InputStreamHandlingTask(downloader, downloadRequest);
+        // Called on the download thread: read the connection right away
+        // rather than queueing it behind lookups and decodes
+        new InputStreamHandlingTask(downloader, inputStream, downloadRequest).run();
+    }
+
+    @Override
+    public void onImageDownloadFailure(ShutterbugDownloader downloader, DownloadRequest downloadRequest) {
+        for (DownloadRequest waitingRequest : mRequests.removeDownloader(downloader)) {
+            dispatchFailure(waitingRequest, downloadRequest.getUrl());
+        }
+    }
 
-        // AsyncTask was changed in Honeycomb to execute in serial by default, at which time
-        // executeOnExecutor was added to specify parallel execution.
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, inputStream);
+    /**
+     * Returns the size {@code width} x {@code height} is scaled down to so
+     * that it fits in {@code maxWidth} x {@code maxHeight}, or the size itself
+     * if it fits or no maximum was requested.
+     */
+    private static int[] fitSize(int width, int height, int maxWidth, int maxHeight) {
+        if (maxWidth == 0 || maxHeight == 0 || (width <= maxWidth && height <= maxHeight)) {
+            return new int[] { width, height };
+        }
+        int newWidth, newHeight;
+        if (width > height) {
+            newWidth = Math.min(width, maxWidth);
+            newHeight = (int) (((float) newWidth / width) * height);
         } else {
-            task.execute(inputStream);
+            newHeight = Math.min(height, maxHeight);
+            newWidth = (int) (((float) newHeight / height) * width);
         }
+        return new int[] { newWidth, newHeight };
     }
 
-    @Override
-    public void onImageDownloadFailure(ShutterbugDownloader downloader, DownloadRequest downloadRequest) {
-        for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-            final int uidx = idx;
-            ShutterbugDownloader aDownloader = mDownloaders.get(uidx);
-            if (aDownloader == downloader) {
-                ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
-                listener.onImageFailure(this, downloadRequest.getUrl());
-                mDownloaders.remove(uidx);
-                mDownloadImageListeners.remove(uidx);
-            }
+    private static Bitmap scaleToFit(Bitmap bitmap, int maxWidth, int maxHeight) {
+        int[] size = fitSize(bitmap.getWidth(), bitmap.getHeight(), maxWidth, maxHeight);
+        if (size[0] == bitmap.getWidth() && size[1] == bitmap.getHeight()) {
+            return bitmap;
         }
-        mDownloadersMap.remove(downloadRequest.getUrl());
+        return Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
     }
 
-    private class InputStreamHandlingTask extends AsyncTask<DownloaderInputStream, Void, DownloaderImage> {
-        ShutterbugDownloader mDownloader;
-        DownloadRequest      mDownloadRequest;
+    private class InputStreamHandlingTask implements Runnable {
+        ShutterbugDownloader  mDownloader;
+        DownloaderInputStream mDownloaderInputStream;
+        DownloadRequest       mDownloadRequest;
 
-        InputStreamHandlingTask(ShutterbugDownloader downloader, DownloadRequest downloadRequest) {
+        InputStreamHandlingTask(ShutterbugDownloader downloader, DownloaderInputStream downloaderInputStream,
+                DownloadRequest downloadRequest) {
             mDownloader = downloader;
+            mDownloaderInputStream = downloaderInputStream;
             mDownloadRequest = downloadRequest;
         }
 
         @Override
-        protected DownloaderImage doInBackground(DownloaderInputStream... params) {
-            DownloaderInputStream downloaderInputStream = params[0];
+        public void run() {
+            complete(handle());
+        }
+
+        private DownloaderImage handle() {
+            DownloaderInputStream downloaderInputStream = mDownloaderInputStream;
             DownloaderImage downloaderImage = null;
             final ImageCache sharedImageCache = mImageCache;
             final int maxWidth = mDownloadRequest.getMaxWidth();
             final int maxHeight = mDownloadRequest.getMaxHeight();
             final String cacheKey = getCacheKey(mDownloadRequest, maxWidth, maxHeight);
+            final String originalCacheKey = getCacheKey(mDownloadRequest, 0, 0);
+
+            // Keep the bytes as downloaded under the key of the original and
+            // decode from the committed cache entry. Only a scaled variant
+            // gets re-encoded, under its own key, so that other sizes can be
+            // derived from the original later.
+            Snapshot snapshot = sharedImageCache.storeEncodedToDisk(downloaderInputStream.getInputStream(),
+                    downloaderInputStream.getMimetype(), originalCacheKey);
+            if (snapshot != null) {
+                try {
+                    downloaderImage = decodeSnapshot(snapshot, downloaderInputStream.getMimetype(), mDownloadRequest,
+                            cacheKey);
+                } catch (IOException e) {
+                    Log.d(TAG, e.getMessage(), e);
+                } finally {
+                    snapshot.close();
+                }
+                if (downloaderImage != null) {
+                    // Retained until the waiting requests are, so that the
+                    // memory cache cannot pool it meanwhile
+                    downloaderImage.retain();
+                    sharedImageCache.storeToMemory(downloaderImage, cacheKey);
+                } else {
+                    // Not an image we can decode, don't serve it from disk
+                    sharedImageCache.removeFromDisk(originalCacheKey);
+                }
+                return downloaderImage;
+            }
 
             if(ImageCache.MIMETYPE_GIF.equals(downloaderInputStream.getMimetype())) {
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                int read;
-                byte[] input = new byte[4096];
                 try {
-                    while ( -1 != ( read = downloaderInputStream.getInputStream().read(input) ) ) {
-                        buffer.write( input, 0, read );
-                    }
-                    downloaderImage = new DownloaderImage(buffer.toByteArray());
+                    downloaderImage = new DownloaderImage(ImageCache.readToBuffer(downloaderInputStream.getInputStream()));
                 } catch(IOException e) {
-                    Log.d("ShutterbugManager", e.getMessage(), e);
+                    Log.d(TAG, e.getMessage(), e);
                 }
             } else {
                 Bitmap bitmap = null;
                 try {
-                    bitmap = BitmapFactory.decodeStream(params[0].getInputStream());
+                    bitmap = BitmapFactory.decodeStream(downloaderInputStream.getInputStream());
                 } catch (OutOfMemoryError e) {
                     e.printStackTrace();
                 }
                 if (bitmap != null) {
-                    if(maxWidth != 0 && maxHeight != 0) {
-                        float width = bitmap.getWidth();
-                        float height = bitmap.getHeight();
-
-                        if(width > maxWidth || height > maxHeight) {
-                            int newWidth = 0, newHeight = 0;
-                            if(width > height) {
-                                newWidth = (int) Math.min(width, maxWidth);;
-                                newHeight = (int)((newWidth / width) * height);
-                            } else {
-                                newHeight = (int) Math.min(height, maxHeight);
-                                newWidth = (int)((newHeight / height) * width);
-                            }
-                            bitmap = Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
-                        }
-                    }
+                    bitmap = scaleToFit(bitmap, maxWidth, maxHeight);
                     downloaderImage = new DownloaderImage(bitmap, downloaderInputStream.getMimetype());
                 }
             }
 
             if(downloaderImage != null) {
+                downloaderImage.retain();
                 sharedImageCache.storeToDisk(downloaderImage, cacheKey);
                 sharedImageCache.storeToMemory(downloaderImage, cacheKey);
             }
             return downloaderImage;
         }
 
-        @Override
-        protected void onPostExecute(DownloaderImage downloaderImage) {
+        private void complete(DownloaderImage downloaderImage) {
             // Notify all the downloadListener with this downloader
-            for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-                final int uidx = idx;
-                ShutterbugDownloader aDownloader = mDownloaders.get(uidx);
-                if (aDownloader == mDownloader) {
-                    ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
-                    if (downloaderImage != null) {
-                        listener.onImageSuccess(ShutterbugManager.this, downloaderImage, mDownloadRequest.getUrl());
-                    } else {
-                        listener.onImageFailure(ShutterbugManager.this, mDownloadRequest.getUrl());
-                    }
-                    mDownloaders.remove(uidx);
-                    mDownloadImageListeners.remove(uidx);
-                }
-            }
             if (downloaderImage != null) {
             } else { // TODO add retry option
                 mFailedUrls.add(mDownloadRequest.getUrl());
             }
-            mDownloadersMap.remove(mDownloadRequest.getUrl());
+            for (DownloadRequest waitingRequest : mRequests.removeDownloader(mDownloader)) {
+                if (downloaderImage != null) {
+                    downloaderImage.retain();
+                    dispatchSuccess(waitingRequest, downloaderImage, mDownloadRequest.getUrl());
+                } else {
+                    dispatchFailure(waitingRequest, mDownloadRequest.getUrl());
+                }
+            }
+            if (downloaderImage != null) {
+                mImageCache.release(downloaderImage);
+            }
         }
 
     }
 
+    /**
+     * Hands back an image delivered to a listener once it stops displaying
+     * it. Its bitmap is decoded into again once the memory cache drops it
+     * too; images never released are left to the garbage collector.
+     */
+    public void release(DownloaderImage downloaderImage) {
+        mImageCache.release(downloaderImage);
+    }
+
     public void cancel(ShutterbugManagerListener listener) {
-        int idx;
-        while ((idx = mCacheListeners.indexOf(listener)) != -1) {
-            mCacheListeners.remove(idx);
-            mCacheUrls.remove(idx);
+        List<DownloadRequest> canceledRequests = new ArrayList<DownloadRequest>();
+        List<ShutterbugDownloader> idleDownloaders = mRequests.cancel(listener, canceledRequests);
+        for (DownloadRequest downloadRequest : canceledRequests) {
+            // Drops their queued lookups and decodes
+            downloadRequest.cancel();
         }
-
-        while ((idx = mDownloadImageListeners.indexOf(listener)) != -1) {
-            ShutterbugDownloader downloader = mDownloaders.get(idx);
-
-            mDownloadRequests.remove(idx);
-            mDownloadImageListeners.remove(idx);
-            mDownloaders.remove(idx);
-
-            if (!mDownloaders.contains(downloader)) {
-                // No more listeners are waiting for this download, cancel it
-                downloader.cancel();
-                mDownloadersMap.remove(downloader.getUrl());
-            }
+        for (ShutterbugDownloader downloader : idleDownloaders) {
+            // No more listeners are waiting for this download, cancel it
+            downloader.cancel();
         }
-
     }
 }